@@ -0,0 +1,122 @@
+/**
+ * Assignment step of k-means: finds the nearest centroid of a point, or of
+ * every point of a block of rows. Distances are compared squared, so no
+ * square root is taken. Implementations are stateless and shared by all
+ * worker threads.
+ */
+interface AssignmentKernel {
+    /** Centroid count from which assignment is cache-blocked. */
+    int BLOCKED_MIN_CENTROIDS = 128;
+
+    /**
+     * Finds the centroid closest to a point. Ties go to the lower index.
+     * @param values    array holding the point
+     * @param offset    index of the point's first attribute
+     * @param centroids row-major centroids
+     * @param numCentroids  number of centroids
+     * @param dims  attributes per row
+     * @return index of the nearest centroid, starting at 0
+     */
+    int nearest(double[] values, int offset, double[] centroids,
+                int numCentroids, int dims);
+
+    /**
+     * Finds the nearest centroid of every row in [fromRow, toRow) of a
+     * row-major array and writes them to out[outOffset ..].
+     * @param values    row-major points
+     * @param fromRow   first row (inclusive)
+     * @param toRow last row (exclusive)
+     * @param centroids row-major centroids
+     * @param numCentroids  number of centroids
+     * @param dims  attributes per row
+     * @param out   array to write centroid indices to
+     * @param outOffset index in out of the result for fromRow
+     */
+    default void nearestBlock(double[] values, int fromRow, int toRow,
+                              double[] centroids, int numCentroids, int dims,
+                              int[] out, int outOffset) {
+        for (int row = fromRow; row < toRow; row++) {
+            out[outOffset + row - fromRow] = nearest(values, row * dims,
+                    centroids, numCentroids, dims);
+        }
+    }
+
+    /**
+     * Short name of the kernel, for printing.
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Looks up a kernel by name.
+     * @param name  "scalar", "vector", "blocked", or "auto" for
+     *              {@link #best(int)}
+     * @param numCentroids  number of centroids the kernel will search
+     * @return an AssignmentKernel
+     * @throws IllegalArgumentException if the name is unknown, or the
+     *          vector kernel is asked for but unavailable
+     */
+    static AssignmentKernel forName(String name, int numCentroids) {
+        switch (name) {
+            case "auto":
+                return best(numCentroids);
+            case "blocked":
+                return new BlockedAssignmentKernel();
+            case "scalar":
+                return new ScalarAssignmentKernel();
+            case "vector":
+                AssignmentKernel vector = loadVectorKernel();
+                if (vector == null) {
+                    throw new IllegalArgumentException("Vector kernel needs "
+                            + "--add-modules jdk.incubator.vector");
+                }
+                return vector;
+            default:
+                throw new IllegalArgumentException("Unknown kernel: " + name);
+        }
+    }
+
+    /**
+     * The best kernel for a number of centroids. The SIMD kernel when it is
+     * available, which blocks itself for large k; otherwise the
+     * cache-blocked scalar kernel for large k and the plain scalar kernel
+     * for small k.
+     * @param numCentroids  number of centroids the kernel will search
+     * @return an AssignmentKernel
+     */
+    static AssignmentKernel best(int numCentroids) {
+        AssignmentKernel vector = loadVectorKernel();
+        if (vector != null) {
+            return vector;
+        }
+        if (numCentroids >= BLOCKED_MIN_CENTROIDS) {
+            return new BlockedAssignmentKernel();
+        }
+        return new ScalarAssignmentKernel();
+    }
+
+    /**
+     * The fastest kernel available in this JVM: the SIMD kernel when the
+     * jdk.incubator.vector module is present, the scalar one otherwise.
+     * @return an AssignmentKernel
+     */
+    static AssignmentKernel best() {
+        AssignmentKernel vector = loadVectorKernel();
+        return vector != null ? vector : new ScalarAssignmentKernel();
+    }
+
+    /**
+     * Loads the SIMD kernel reflectively, so that this interface still
+     * links when the incubator module is not resolved.
+     * @return the vector kernel, or null if unavailable
+     */
+    private static AssignmentKernel loadVectorKernel() {
+        try {
+            Class<?> c = Class.forName("VectorAssignmentKernel");
+            return (AssignmentKernel) c.getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
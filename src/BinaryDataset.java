@@ -0,0 +1,395 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Compact binary dataset format, loaded by memory-mapping the file instead
+ * of parsing text. All numbers are little-endian. The file holds
+ * <pre>
+ *   int magic "KMB1", int value bytes (8 = double, 4 = float),
+ *   long rows, int dimensions, int header bytes,
+ *   feature names, label name (empty if unlabeled), label dictionary,
+ *   padding to 8 bytes, int label id per row, padding to 8 bytes,
+ *   row-major values
+ * </pre>
+ * where every string is an int byte count followed by UTF-8 bytes and the
+ * dictionary is an int count followed by its strings. Loading maps the
+ * label and value sections and bulk-copies them into the columnar arrays
+ * of a {@link Dataset}, so the cost is that of reading the pages, with no
+ * per-value parsing. Float files load into a dataset stored as floats.
+ */
+public class BinaryDataset {
+    private static final int MAGIC = 0x31424d4b;    // "KMB1" little-endian
+    private static final int PREFIX_BYTES = 24; // fixed part of the header
+    private static final long MAX_MAP = Integer.MAX_VALUE & ~7L; // per map
+    private static final int WRITE_BUFFER = 1 << 20;    // bytes per write
+
+    /**
+     * Writes a dataset in the binary format.
+     * @param data  Dataset to write
+     * @param fileName  String for the file name
+     * @param floats    True to store floats, False to store doubles
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Dataset data, String fileName, boolean floats)
+            throws IOException {
+        Schema schema = data.getSchema();
+        List<byte[]> strings = new ArrayList<>();
+        for (String name: schema.getFeatureNames()) {
+            strings.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        String labelName = schema.hasLabel() ? schema.getLabelName() : "";
+        strings.add(labelName.getBytes(StandardCharsets.UTF_8));
+        List<String> labelNames = data.getLabelNames();
+        for (String name: labelNames) {
+            strings.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        int headerBytes = PREFIX_BYTES + 4;
+        for (byte[] s: strings) {
+            headerBytes += 4 + s.length;
+        }
+
+        int dims = data.getDimensions();
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(WRITE_BUFFER,
+                    headerBytes + 8)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(floats ? 4 : 8)
+                    .putLong(data.size()).putInt(dims).putInt(headerBytes);
+            for (int i = 0; i < dims + 1; i++) {
+                buffer.putInt(strings.get(i).length).put(strings.get(i));
+            }
+            buffer.putInt(labelNames.size());
+            for (int i = dims + 1; i < strings.size(); i++) {
+                buffer.putInt(strings.get(i).length).put(strings.get(i));
+            }
+            pad(channel, buffer);
+
+            int[] labels = data.getLabels();
+            for (int row = 0; row < labels.length; row++) {
+                if (buffer.remaining() < 8) {
+                    flush(channel, buffer);
+                }
+                buffer.putInt(labels[row]);
+            }
+            pad(channel, buffer);
+
+            if (floats) {
+                float[] values = data.getFloatValues();
+                for (int i = 0; i < values.length; i++) {
+                    if (buffer.remaining() < 8) {
+                        flush(channel, buffer);
+                    }
+                    buffer.putFloat(values[i]);
+                }
+            }
+            else {
+                double[] values = data.getValues();
+                for (int i = 0; i < values.length; i++) {
+                    if (buffer.remaining() < 8) {
+                        flush(channel, buffer);
+                    }
+                    buffer.putDouble(values[i]);
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * Loads a dataset written by {@link #write(Dataset, String, boolean)}.
+     * @param fileName  String for the file name
+     * @return a Dataset
+     * @throws IOException if the file cannot be read or is not in the format
+     */
+    public static Dataset read(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ)) {
+            Header header = readHeader(channel, fileName);
+            int dims = header.getDimensions();
+            if (header.getRows() * dims > Integer.MAX_VALUE - 8) {
+                throw new IOException(fileName + " has too many values " +
+                        "to load; cluster it with OutOfCoreKMeans");
+            }
+
+            long position = header.labelsPosition;
+            int[] labels = new int[(int) header.getRows()];
+            for (int row = 0; row < labels.length; ) {
+                int count = (int) Math.min(labels.length - row, MAX_MAP / 4);
+                map(channel, position, 4L * count).asIntBuffer()
+                        .get(labels, row, count);
+                row += count;
+                position += 4L * count;
+            }
+
+            position = header.valuesPosition;
+            int valueBytes = header.valueBytes;
+            int numValues = labels.length * dims;
+            double[] values = valueBytes == 8 ? new double[numValues] : null;
+            float[] floats = valueBytes == 4 ? new float[numValues] : null;
+            for (int i = 0; i < numValues; ) {
+                int count = (int) Math.min(numValues - i,
+                        MAX_MAP / valueBytes);
+                ByteBuffer section = map(channel, position,
+                        (long) valueBytes * count);
+                if (floats == null) {
+                    section.asDoubleBuffer().get(values, i, count);
+                }
+                else {
+                    section.asFloatBuffer().get(floats, i, count);
+                }
+                i += count;
+                position += (long) valueBytes * count;
+            }
+            List<String> labelNames = header.labelNames;
+            Schema schema = header.schema;
+            return floats == null ?
+                    new Dataset(values, labels, labelNames, schema) :
+                    new Dataset(floats, labels, labelNames, schema);
+        }
+    }
+
+    /**
+     * Layout of a binary dataset file, read from its header.
+     */
+    static class Header {
+        private final int valueBytes;   // 8 for doubles, 4 for floats
+        private final long rows;    // rows in the file
+        private final Schema schema;    // column layout
+        private final List<String> labelNames;  // label dictionary
+        private final long labelsPosition;  // first byte of the labels
+        private final long valuesPosition;  // first byte of the values
+
+        /**
+         * Constructor
+         * @param valueBytes    8 for doubles, 4 for floats
+         * @param rows  rows in the file
+         * @param schema    column layout
+         * @param labelNames    label dictionary
+         * @param labelsPosition    first byte of the labels
+         */
+        Header(int valueBytes, long rows, Schema schema,
+               List<String> labelNames, long labelsPosition) {
+            this.valueBytes = valueBytes;
+            this.rows = rows;
+            this.schema = schema;
+            this.labelNames = labelNames;
+            this.labelsPosition = labelsPosition;
+            this.valuesPosition = align(labelsPosition + 4 * rows);
+        }
+
+        /**
+         * Rows in the file.
+         * @return row count
+         */
+        long getRows() {
+            return rows;
+        }
+
+        /**
+         * Attributes per row.
+         * @return dimensions
+         */
+        int getDimensions() {
+            return schema.getDimensions();
+        }
+
+        /**
+         * Column layout.
+         * @return the schema
+         */
+        Schema getSchema() {
+            return schema;
+        }
+
+        /**
+         * Whether the values are stored as floats.
+         * @return True for floats, False for doubles
+         */
+        boolean isFloat() {
+            return valueBytes == 4;
+        }
+    }
+
+    /**
+     * Reads and checks the header of a binary dataset.
+     * @param channel   open file
+     * @param fileName  String for the file name, for errors
+     * @return the layout of the file
+     * @throws IOException if the file cannot be read or is not in the format
+     */
+    static Header readHeader(FileChannel channel, String fileName)
+            throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (prefix.hasRemaining()) {
+            if (channel.read(prefix, prefix.position()) < 0) {
+                throw new IOException(fileName + " is too short");
+            }
+        }
+        prefix.flip();
+        if (prefix.getInt() != MAGIC) {
+            throw new IOException(fileName + " is not a binary dataset");
+        }
+        int valueBytes = prefix.getInt();
+        long rows = prefix.getLong();
+        int dims = prefix.getInt();
+        int headerBytes = prefix.getInt();
+        if (valueBytes != 4 && valueBytes != 8 || rows < 0 || dims <= 0) {
+            throw new IOException(fileName + " has an unsupported layout");
+        }
+
+        //names and label dictionary
+        ByteBuffer header = map(channel, PREFIX_BYTES,
+                headerBytes - PREFIX_BYTES);
+        List<String> featureNames = new ArrayList<>();
+        for (int j = 0; j < dims; j++) {
+            featureNames.add(readString(header));
+        }
+        String labelName = readString(header);
+        int numLabels = header.getInt();
+        List<String> labelNames = new ArrayList<>();
+        for (int l = 0; l < numLabels; l++) {
+            labelNames.add(readString(header));
+        }
+        Schema schema = new Schema(featureNames,
+                labelName.isEmpty() ? null : labelName);
+        return new Header(valueBytes, rows, schema, labelNames,
+                align(headerBytes));
+    }
+
+    /**
+     * Copies consecutive rows of a binary dataset into a double array,
+     * widening floats, without loading the rest of the file.
+     * @param channel   open file
+     * @param header    layout of the file
+     * @param firstRow  first row to read
+     * @param numRows   rows to read
+     * @param values    array to write the row-major values to, from 0
+     * @throws IOException if the rows cannot be read
+     */
+    static void readRows(FileChannel channel, Header header, long firstRow,
+                         int numRows, double[] values) throws IOException {
+        int dims = header.getDimensions();
+        int valueBytes = header.valueBytes;
+        long position = header.valuesPosition + firstRow * dims * valueBytes;
+        int numValues = numRows * dims;
+        for (int i = 0; i < numValues; ) {
+            int count = (int) Math.min(numValues - i, MAX_MAP / valueBytes);
+            ByteBuffer section = map(channel, position,
+                    (long) valueBytes * count);
+            if (valueBytes == 8) {
+                section.asDoubleBuffer().get(values, i, count);
+            }
+            else {
+                FloatBuffer floats = section.asFloatBuffer();
+                for (int j = 0; j < count; j++) {
+                    values[i + j] = floats.get();
+                }
+            }
+            i += count;
+            position += (long) valueBytes * count;
+        }
+    }
+
+    /**
+     * Maps a read-only section of a file in little-endian order.
+     * @param channel   open file
+     * @param position  first byte of the section
+     * @param size  bytes in the section
+     * @return the mapped buffer
+     * @throws IOException if the section cannot be mapped
+     */
+    private static MappedByteBuffer map(FileChannel channel, long position,
+                                        long size) throws IOException {
+        if (position + size > channel.size()) {
+            throw new IOException("Binary dataset is truncated");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     * @param buffer    buffer positioned at the string
+     * @return the string
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rounds a file position up to a multiple of 8.
+     * @param position  file position
+     * @return aligned position
+     */
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    /**
+     * Pads the bytes written so far to a multiple of 8.
+     * @param channel   open file
+     * @param buffer    write buffer
+     * @throws IOException if the file position cannot be read
+     */
+    private static void pad(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (((channel.position() + buffer.position()) & 7) != 0) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Writes out the buffer and clears it.
+     * @param channel   open file
+     * @param buffer    write buffer
+     * @throws IOException if the write fails
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Converts a CSV file, such as iris-data.csv, to the binary format.
+     * Usage: BinaryDataset input.csv output.kmb [float]
+     * @param args  input file, output file and optional value type
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: BinaryDataset input.csv output.kmb " +
+                    "[float]");
+            return;
+        }
+        boolean floats = args.length > 2 && args[2].equals("float");
+        Long startTime = System.currentTimeMillis();
+        Dataset data = Dataset.readCsv(args[0]);
+        try {
+            write(data, args[1], floats);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Long endTime = System.currentTimeMillis();
+        System.out.println("Wrote " + data.size() + " rows of " +
+                data.getDimensions() + " " + (floats ? "floats" : "doubles") +
+                " in " + (endTime-startTime) + "ms");
+    }
+}
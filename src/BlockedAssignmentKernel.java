@@ -0,0 +1,217 @@
+import java.util.Arrays;
+
+/**
+ * Cache-blocked assignment kernel for large k. Instead of streaming every
+ * centroid past every point, a block of rows is compared with one tile of
+ * centroids at a time, the tile being sized to stay in cache while all rows
+ * of the block visit it. Distances use the expansion
+ * ||x-c||^2 = ||x||^2 - 2x.c + ||c||^2; since ||x||^2 is the same for every
+ * centroid only -2x.c + ||c||^2 is compared, and the centroid norms are
+ * computed once per block and reused by all of its rows. The dot products
+ * are computed for two points by two centroids at a time, GEMM style, so
+ * each loaded value feeds two multiply-adds.
+ *
+ * The expansion rounds differently from the direct difference, so a point
+ * that is equally close to two centroids may be assigned to either one.
+ */
+final class BlockedAssignmentKernel implements AssignmentKernel {
+    static final int TILE_BYTES = 64 * 1024; // centroid tile size
+    private static final int ROW_TILE = 64; // rows compared per tile pass
+
+    @Override
+    public int nearest(double[] values, int offset, double[] centroids,
+                       int numCentroids, int dims) {
+        return DistanceKernel.nearest(values, offset, centroids, numCentroids,
+                dims);
+    }
+
+    @Override
+    public void nearestBlock(double[] values, int fromRow, int toRow,
+                             double[] centroids, int numCentroids, int dims,
+                             int[] out, int outOffset) {
+        double[] norms = new double[numCentroids];
+        for (int c = 0; c < numCentroids; c++) {
+            norms[c] = dot(centroids, c * dims, centroids, c * dims, dims);
+        }
+        int tile = Math.max(4, TILE_BYTES / (8 * dims)) & ~3;
+        double[] best = new double[ROW_TILE];
+        int[] bestIndex = new int[ROW_TILE];
+
+        for (int r0 = fromRow; r0 < toRow; r0 += ROW_TILE) {
+            int r1 = Math.min(r0 + ROW_TILE, toRow);
+            Arrays.fill(best, Double.MAX_VALUE);
+            Arrays.fill(bestIndex, 0);  //rows no distance beats go to 0
+            for (int c0 = 0; c0 < numCentroids; c0 += tile) {
+                int c1 = Math.min(c0 + tile, numCentroids);
+                int row = r0;
+                for (; row + 1 < r1; row += 2) {
+                    scanTilePair(values, row * dims, centroids, norms, c0, c1,
+                            dims, best, bestIndex, row - r0);
+                }
+                if (row < r1) {
+                    scanTile(values, row * dims, centroids, norms, c0, c1,
+                            dims, best, bestIndex, row - r0);
+                }
+            }
+            for (int row = r0; row < r1; row++) {
+                out[outOffset + row - fromRow] = bestIndex[row - r0];
+            }
+        }
+    }
+
+    /**
+     * Compares two consecutive points with the centroids [c0, c1) and
+     * updates their best centroids so far. Two points by two centroids are
+     * combined per step, so every loaded value feeds two multiply-adds.
+     * @param values    array holding the points
+     * @param offset    index of the first point's first attribute
+     * @param centroids row-major centroids
+     * @param norms squared norm of every centroid
+     * @param c0    first centroid of the tile (inclusive)
+     * @param c1    last centroid of the tile (exclusive)
+     * @param dims  attributes per row
+     * @param best  best partial distance per row of the row tile
+     * @param bestIndex best centroid per row of the row tile
+     * @param slot  index of the first point in the row tile
+     */
+    private static void scanTilePair(double[] values, int offset,
+                                     double[] centroids, double[] norms,
+                                     int c0, int c1, int dims, double[] best,
+                                     int[] bestIndex, int slot) {
+        int offsetB = offset + dims;
+        double minA = best[slot], minB = best[slot+1];
+        int indexA = bestIndex[slot], indexB = bestIndex[slot+1];
+        int c = c0;
+        for (; c + 1 < c1; c += 2) {
+            int o0 = c * dims, o1 = o0 + dims;
+            double a0 = 0.0, a1 = 0.0, b0 = 0.0, b1 = 0.0;
+            for (int j = 0; j < dims; j++) {
+                double xa = values[offset+j];
+                double xb = values[offsetB+j];
+                double y0 = centroids[o0+j];
+                double y1 = centroids[o1+j];
+                a0 += xa * y0;
+                a1 += xa * y1;
+                b0 += xb * y0;
+                b1 += xb * y1;
+            }
+            a0 = norms[c] - 2.0 * a0;
+            a1 = norms[c+1] - 2.0 * a1;
+            b0 = norms[c] - 2.0 * b0;
+            b1 = norms[c+1] - 2.0 * b1;
+            if (a0 < minA) {
+                minA = a0;
+                indexA = c;
+            }
+            if (a1 < minA) {
+                minA = a1;
+                indexA = c+1;
+            }
+            if (b0 < minB) {
+                minB = b0;
+                indexB = c;
+            }
+            if (b1 < minB) {
+                minB = b1;
+                indexB = c+1;
+            }
+        }
+        best[slot] = minA;
+        best[slot+1] = minB;
+        bestIndex[slot] = indexA;
+        bestIndex[slot+1] = indexB;
+        if (c < c1) {
+            scanTile(values, offset, centroids, norms, c, c1, dims, best,
+                    bestIndex, slot);
+            scanTile(values, offsetB, centroids, norms, c, c1, dims, best,
+                    bestIndex, slot+1);
+        }
+    }
+
+    /**
+     * Compares one point with the centroids [c0, c1) and updates its best
+     * centroid so far.
+     * @param values    array holding the point
+     * @param offset    index of the point's first attribute
+     * @param centroids row-major centroids
+     * @param norms squared norm of every centroid
+     * @param c0    first centroid of the tile (inclusive)
+     * @param c1    last centroid of the tile (exclusive)
+     * @param dims  attributes per row
+     * @param best  best partial distance per row of the row tile
+     * @param bestIndex best centroid per row of the row tile
+     * @param slot  index of the point in the row tile
+     */
+    private static void scanTile(double[] values, int offset,
+                                 double[] centroids, double[] norms, int c0,
+                                 int c1, int dims, double[] best,
+                                 int[] bestIndex, int slot) {
+        double minDistance = best[slot];
+        int minIndex = bestIndex[slot];
+        int c = c0;
+        for (; c + 3 < c1; c += 4) {
+            int o0 = c * dims, o1 = o0 + dims, o2 = o1 + dims, o3 = o2 + dims;
+            double d0 = 0.0, d1 = 0.0, d2 = 0.0, d3 = 0.0;
+            for (int j = 0; j < dims; j++) {
+                double x = values[offset+j];
+                d0 += x * centroids[o0+j];
+                d1 += x * centroids[o1+j];
+                d2 += x * centroids[o2+j];
+                d3 += x * centroids[o3+j];
+            }
+            d0 = norms[c] - 2.0 * d0;
+            d1 = norms[c+1] - 2.0 * d1;
+            d2 = norms[c+2] - 2.0 * d2;
+            d3 = norms[c+3] - 2.0 * d3;
+            if (d0 < minDistance) {
+                minDistance = d0;
+                minIndex = c;
+            }
+            if (d1 < minDistance) {
+                minDistance = d1;
+                minIndex = c+1;
+            }
+            if (d2 < minDistance) {
+                minDistance = d2;
+                minIndex = c+2;
+            }
+            if (d3 < minDistance) {
+                minDistance = d3;
+                minIndex = c+3;
+            }
+        }
+        for (; c < c1; c++) {
+            double d = norms[c] - 2.0 * dot(values, offset, centroids,
+                    c * dims, dims);
+            if (d < minDistance) {
+                minDistance = d;
+                minIndex = c;
+            }
+        }
+        best[slot] = minDistance;
+        bestIndex[slot] = minIndex;
+    }
+
+    /**
+     * Dot product of two rows.
+     * @param a one array
+     * @param aOffset   index of the first attribute in a
+     * @param b another array
+     * @param bOffset   index of the first attribute in b
+     * @param dims  attributes per row
+     * @return the dot product
+     */
+    private static double dot(double[] a, int aOffset, double[] b,
+                              int bOffset, int dims) {
+        double s = 0.0;
+        for (int j = 0; j < dims; j++) {
+            s += a[aOffset+j] * b[bOffset+j];
+        }
+        return s;
+    }
+
+    @Override
+    public String getName() {
+        return "blocked";
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.Random;
+
+/**
+ * Picks the starting centroids of k-means. Better seeds mean fewer Lloyd
+ * iterations and fewer empty clusters.
+ */
+interface CentroidSeeder {
+    /**
+     * Picks starting centroids from the rows of a dataset.
+     * @param data  Dataset to cluster
+     * @param numCentroids  number of centroids
+     * @param random    source of randomness
+     * @return row-major array of numCentroids*dimensions values
+     */
+    double[] seed(Dataset data, int numCentroids, Random random);
+
+    /**
+     * Short name of the seeding method, for printing.
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Looks up a seeding method by name.
+     * @param name  "random", "kmeans++", "kmeans||", or "auto" for
+     *              k-means|| with several threads and k-means++ with one
+     * @param numThreads    threads the seeding may use
+     * @return a CentroidSeeder
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static CentroidSeeder forName(String name, int numThreads) {
+        switch (name) {
+            case "auto":
+                return numThreads > 1 ? new KMeansParallelSeeder(numThreads)
+                        : new KMeansPlusPlusSeeder();
+            case "random":
+                return new RandomSeeder();
+            case "kmeans++":
+                return new KMeansPlusPlusSeeder();
+            case "kmeans||":
+                return new KMeansParallelSeeder(numThreads);
+            default:
+                throw new IllegalArgumentException("Unknown seeding: " + name);
+        }
+    }
+}
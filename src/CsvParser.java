@@ -0,0 +1,717 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Byte-level CSV parser that reads a memory-mapped file straight into the
+ * columnar arrays of a {@link Dataset}. Rows are parsed without creating a
+ * String per line or per field: numbers are assembled from their digits,
+ * and labels are looked up in a hash table of the label bytes, so a String
+ * is only made the first time a label is seen. The header and the first
+ * data row are the only lines turned into Strings, to discover the schema.
+ *
+ * The delimiter is taken from the first line: a comma, semicolon or tab if
+ * the line holds one, otherwise runs of blanks; tabs mixed with spaces
+ * inside the line count as blanks. Blanks around fields, empty
+ * lines and CR LF line ends are ignored.
+ *
+ * Numbers with at most 15 significant digits and a decimal exponent within
+ * 22 are converted with one exact multiplication or division, which rounds
+ * the same as Double.parseDouble; anything else falls back to it.
+ */
+final class CsvParser {
+    private static final long MAX_MAP = Integer.MAX_VALUE & ~7L; // per map
+    private static final int HEAD_BYTES = 1 << 20;  // bytes to find a schema
+    private static final int SCAN_BYTES = 1 << 16;  // bytes read per scan
+    private static final int BLOCK_BYTES = 1 << 18; // bytes parsed at once
+    private static final int MAX_FAST_DIGITS = 15;  // exact in a double
+    private static final double[] POWERS = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5,
+            1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+            1e17, 1e18, 1e19, 1e20, 1e21, 1e22};  // exact powers of ten
+
+    private final Schema schema;    // column layout
+    private final int dims; // numeric fields per row
+    private final byte delimiter;   // field separator, 0 for blank runs
+    private final long dataStart;   // file offset of the first data row
+    private final List<String> labelNames;  // dictionary labels go into
+    private int[] table = new int[64];  // label id + 1 per hash slot
+    private byte[][] labelBytes = new byte[16][];   // bytes of every label
+    private double[] values;    // parsed row-major values
+    private int[] labels;   // parsed label ids
+    private int rows;   // rows parsed since the last take
+    private long fileOffset;    // file offset of the block being parsed
+    private byte[] block = new byte[BLOCK_BYTES];  // bytes being parsed
+    private int scanEnd;    // where the last scanned number stopped
+    private boolean scanExact;  // whether it was converted exactly
+
+    /**
+     * Constructor
+     * @param schema    column layout
+     * @param delimiter field separator, 0 for runs of blanks
+     * @param dataStart file offset of the first data row
+     * @param labelNames    dictionary to add new labels to
+     */
+    CsvParser(Schema schema, byte delimiter, long dataStart,
+              List<String> labelNames) {
+        this.schema = schema;
+        this.dims = schema.getDimensions();
+        this.delimiter = delimiter;
+        this.dataStart = dataStart;
+        this.labelNames = labelNames;
+        this.values = new double[1024 * dims];
+        this.labels = new int[1024];
+    }
+
+    /**
+     * Reads the start of a file, detects its delimiter and header and
+     * discovers its schema if none is given.
+     * @param fileName  String for the file name, for messages
+     * @param channel   open file
+     * @param schema    column layout, or null to discover it
+     * @param labelNames    dictionary the parser adds new labels to
+     * @return a parser positioned at the first data row
+     * @throws IOException if the file cannot be read
+     */
+    static CsvParser open(String fileName, FileChannel channel,
+                          Schema schema, List<String> labelNames)
+            throws IOException {
+        int length = (int) Math.min(channel.size(), HEAD_BYTES);
+        boolean eof = length == channel.size();
+        ByteBuffer head = ByteBuffer.allocate(length);
+        while (head.hasRemaining()) {
+            if (channel.read(head, head.position()) < 0) {
+                break;
+            }
+        }
+        head.flip();
+
+        byte delimiter = -1;
+        String[] header = null;
+        String[] firstRow = null;
+        long dataStart = length;
+        int pos = 0;
+        while (pos < length && firstRow == null) {
+            int lineEnd = pos;
+            while (lineEnd < length && head.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == length && !eof) {
+                throw new IOException("First rows of " + fileName +
+                        " are longer than " + HEAD_BYTES + " bytes");
+            }
+            byte[] bytes = new byte[lineEnd - pos];
+            head.position(pos);
+            head.get(bytes);
+            String line = new String(bytes, StandardCharsets.UTF_8).trim();
+            int lineStart = pos;
+            pos = lineEnd + 1;
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (delimiter < 0) {
+                delimiter = detectDelimiter(line);
+            }
+            String[] fields = delimiter == 0 ? line.split("[ \t]+") :
+                    line.split(String.valueOf((char) delimiter), -1);
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = fields[i].trim();
+            }
+            if (header == null && !Schema.isNumber(fields[0])) {
+                header = fields;
+                continue;
+            }
+            firstRow = fields;
+            dataStart = lineStart;
+        }
+        if (schema == null) {
+            if (firstRow == null) {
+                throw new IllegalArgumentException("No data rows in " +
+                        fileName);
+            }
+            schema = Schema.discover(header, firstRow);
+        }
+        return new CsvParser(schema, delimiter < 0 ? (byte) ',' : delimiter,
+                dataStart, labelNames);
+    }
+
+    /**
+     * Picks the field separator of a line.
+     * @param line  first non-empty line of the file
+     * @return the delimiter, 0 for runs of blanks
+     */
+    private static byte detectDelimiter(String line) {
+        if (line.indexOf(',') >= 0) {
+            return ',';
+        }
+        if (line.indexOf(';') >= 0) {
+            return ';';
+        }
+        if (line.indexOf('\t') >= 0) {
+            for (String field: line.split("\t", -1)) {
+                if (field.trim().indexOf(' ') >= 0) {
+                    return 0;   //tabs and spaces mixed as blanks
+                }
+            }
+            return '\t';
+        }
+        return 0;
+    }
+
+    /**
+     * Parses a whole CSV file, splitting it into byte ranges at line
+     * boundaries that are parsed in parallel. Every range gets its own
+     * parser and label dictionary; the dictionaries are merged in file
+     * order, so label ids are the same as for a sequential read.
+     * @param fileName  String for the file name
+     * @param schema    column layout, or null to discover it
+     * @param numThreads    number of ranges parsed at once
+     * @return a Dataset
+     * @throws IOException if the file cannot be read
+     */
+    static Dataset read(String fileName, Schema schema, int numThreads)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ)) {
+            CsvParser first = open(fileName, channel, schema,
+                    new ArrayList<>());
+            long start = first.dataStart;
+            long size = channel.size();
+            int numRanges = (int) Math.max(numThreads,
+                    (size - start + MAX_MAP / 2 - 1) / (MAX_MAP / 2));
+            long[] bounds = new long[numRanges + 1];
+            bounds[0] = start;
+            bounds[numRanges] = size;
+            for (int r = 1; r < numRanges; r++) {
+                long b = start + (size - start) * r / numRanges;
+                bounds[r] = Math.max(bounds[r-1],
+                        nextLineStart(channel, b, size));
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Math.min(numThreads, numRanges));
+            List<Future<CsvParser>> results = new ArrayList<>();
+            try {
+                for (int r = 0; r < numRanges; r++) {
+                    final long from = bounds[r], to = bounds[r+1];
+                    final CsvParser parser = r == 0 ? first :
+                            new CsvParser(first.schema, first.delimiter,
+                                    from, new ArrayList<>());
+                    results.add(pool.submit(() -> {
+                        if (to > from) {
+                            ByteBuffer buffer = channel.map(
+                                    FileChannel.MapMode.READ_ONLY, from,
+                                    to - from);
+                            parser.parse(buffer, from, 0, (int) (to - from),
+                                    Integer.MAX_VALUE, true);
+                        }
+                        return parser;
+                    }));
+                }
+
+                //merge the label dictionaries in file order
+                List<String> labelNames = new ArrayList<>();
+                Map<String, Integer> labelIds = new HashMap<>();
+                List<Dataset> chunks = new ArrayList<>();
+                for (Future<CsvParser> result: results) {
+                    CsvParser parser = result.get();
+                    int[] remap = new int[parser.labelNames.size()];
+                    for (int l = 0; l < remap.length; l++) {
+                        String name = parser.labelNames.get(l);
+                        Integer id = labelIds.get(name);
+                        if (id == null) {
+                            id = labelNames.size();
+                            labelIds.put(name, id);
+                            labelNames.add(name);
+                        }
+                        remap[l] = id;
+                    }
+                    Dataset chunk = parser.take();
+                    int[] chunkLabels = chunk.getLabels();
+                    for (int row = 0; row < chunkLabels.length; row++) {
+                        if (chunkLabels[row] >= 0) {
+                            chunkLabels[row] = remap[chunkLabels[row]];
+                        }
+                    }
+                    chunks.add(chunk);
+                }
+                return chunks.size() == 1 ? new Dataset(
+                        chunks.get(0).getValues(), chunks.get(0).getLabels(),
+                        labelNames, first.schema) :
+                        Dataset.concat(chunks, labelNames, first.schema);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " +
+                        fileName, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Finds the start of the first line beginning at or after a position.
+     * @param channel   open file
+     * @param position  file offset
+     * @param size  file size
+     * @return offset just past the first newline at or after position - 1
+     * @throws IOException if the file cannot be read
+     */
+    private static long nextLineStart(FileChannel channel, long position,
+                                      long size) throws IOException {
+        ByteBuffer scan = ByteBuffer.allocate(SCAN_BYTES);
+        long pos = position - 1;
+        while (pos < size) {
+            scan.clear();
+            int n = channel.read(scan, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (scan.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    /**
+     * Parses the complete lines of a buffer into my arrays. The buffer is
+     * copied block by block into a reused array and every byte is looked
+     * at once: numbers are converted while their field is scanned.
+     * @param buffer    bytes of the file
+     * @param bufferOffset  file offset of the first byte of buffer
+     * @param from  index to start at, at the start of a line
+     * @param to    index to stop at
+     * @param maxRows   most rows to parse
+     * @param eof   True if to is the end of the file, so a last line
+     *              without a newline is complete
+     * @return index just past the last line parsed
+     */
+    int parse(ByteBuffer buffer, long bufferOffset, int from, int to,
+              int maxRows, boolean eof) {
+        long limit = (long) rows + maxRows;
+        int pos = from;
+        while (pos < to && rows < limit) {
+            int length = Math.min(block.length, to - pos);
+            buffer.get(pos, block, 0, length);
+            fileOffset = bufferOffset + pos;
+            boolean last = eof && pos + length == to;
+            int used = 0;
+            while (used < length && rows < limit) {
+                int next = parseLine(block, used, length, last);
+                if (next < 0) {
+                    break;
+                }
+                used = next;
+            }
+            if (used == 0) {
+                if (pos + length == to) {
+                    break;
+                }
+                //a single line longer than the block
+                block = new byte[block.length * 2];
+            }
+            pos += used;
+        }
+        return pos;
+    }
+
+    /**
+     * Parses one line into the next row, skipping it if it is empty.
+     * @param bytes block of the file
+     * @param start index of the first byte of the line
+     * @param to    index to stop at
+     * @param eof   True if to is the end of the file
+     * @return index of the next line, or -1 if the line is cut off by to
+     */
+    private int parseLine(byte[] bytes, int start, int to, boolean eof) {
+        int pos = skipBlanks(bytes, start, to);
+        if (pos == to) {
+            return eof ? to : -1;
+        }
+        if (isLineEnd(bytes[pos])) {
+            return nextLine(bytes, pos, to, eof);
+        }
+        if (rows == labels.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+            labels = Arrays.copyOf(labels, labels.length * 2);
+        }
+        int base = rows * dims;
+        for (int j = 0; j < dims; j++) {
+            pos = skipBlanks(bytes, pos, to);
+            if (pos == to || isLineEnd(bytes[pos])) {
+                if (pos == to && !eof) {
+                    return -1;
+                }
+                throw new IllegalArgumentException("Row at byte " +
+                        (fileOffset + start) + " has " + j +
+                        " fields, expected " + dims);
+            }
+            pos = parseField(bytes, pos, to, eof, base + j);
+            if (pos < 0) {
+                return -1;
+            }
+            if (pos < to && delimiter != 0 && bytes[pos] == delimiter) {
+                pos++;
+            }
+        }
+        int label = -1;
+        if (schema.hasLabel()) {
+            pos = skipBlanks(bytes, pos, to);
+            if (pos < to && !isLineEnd(bytes[pos])) {
+                int fieldEnd = fieldEnd(bytes, pos, to);
+                if (fieldEnd == to && !eof) {
+                    return -1;
+                }
+                label = labelId(bytes, pos, trimEnd(bytes, pos, fieldEnd));
+                pos = fieldEnd;
+            }
+        }
+        int next = nextLine(bytes, pos, to, eof);
+        if (next >= 0) {
+            labels[rows] = label;
+            rows++;
+        }
+        return next;
+    }
+
+    /**
+     * Parses one numeric field into my values.
+     * @param bytes block of the file
+     * @param start index of the first byte of the field
+     * @param to    index to stop at
+     * @param eof   True if to is the end of the file
+     * @param index index in my values to write to
+     * @return index just past the field and its trailing blanks, or -1 if
+     *         the field is cut off by to
+     */
+    private int parseField(byte[] bytes, int start, int to, boolean eof,
+                           int index) {
+        double value = scanNumber(bytes, start, to);
+        int pos = skipBlanks(bytes, scanEnd, to);
+        if (pos == to && !eof) {
+            return -1;
+        }
+        boolean separated = pos == to || isLineEnd(bytes[pos]) ||
+                (delimiter == 0 ? pos > scanEnd :
+                        bytes[pos] == delimiter);
+        if (!scanExact || !separated) {
+            pos = fieldEnd(bytes, start, to);
+            if (pos == to && !eof) {
+                return -1;
+            }
+            value = parseSlow(bytes, start, trimEnd(bytes, start, pos));
+        }
+        values[index] = value;
+        return pos;
+    }
+
+    /**
+     * Finds the start of the next line.
+     * @param bytes block of the file
+     * @param pos   index inside the current line
+     * @param to    index to stop at
+     * @param eof   True if to is the end of the file
+     * @return index just past the newline, to at the end of the file, or -1
+     *         if the line is cut off by to
+     */
+    private static int nextLine(byte[] bytes, int pos, int to,
+                                boolean eof) {
+        while (pos < to) {
+            if (bytes[pos] == '\n') {
+                return pos + 1;
+            }
+            pos++;
+        }
+        return eof ? to : -1;
+    }
+
+    /**
+     * Whether a byte ends a line.
+     * @param b the byte
+     * @return True for CR and LF, False otherwise
+     */
+    private static boolean isLineEnd(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    /**
+     * Skips spaces, and tabs unless they separate fields.
+     * @param bytes block of the file
+     * @param pos   index to start at
+     * @param end   index to stop at
+     * @return index of the first other byte, or end
+     */
+    private int skipBlanks(byte[] bytes, int pos, int end) {
+        while (pos < end) {
+            byte b = bytes[pos];
+            if (b != ' ' && (b != '\t' || delimiter == '\t')) {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Finds the end of a field.
+     * @param bytes block of the file
+     * @param pos   index of the first byte of the field
+     * @param end   index to stop at
+     * @return index of the delimiter or line end after the field, or end
+     */
+    private int fieldEnd(byte[] bytes, int pos, int end) {
+        while (pos < end) {
+            byte b = bytes[pos];
+            if (isLineEnd(b) || (delimiter == 0 ? b == ' ' || b == '\t' :
+                    b == delimiter)) {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Drops blanks at the end of a field.
+     * @param bytes block of the file
+     * @param start index of the first byte of the field
+     * @param end   index just past the field
+     * @return index just past the last non-blank byte
+     */
+    private static int trimEnd(byte[] bytes, int start, int end) {
+        while (end > start) {
+            byte b = bytes[end - 1];
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Reads a decimal number from its bytes, stopping at the first byte
+     * that cannot be part of it. Sets scanEnd to that byte and scanExact to
+     * whether the value was converted exactly; if not, the caller falls
+     * back to {@link #parseSlow}.
+     * @param bytes block of the file
+     * @param start index of the first byte of the number
+     * @param end   index to stop at
+     * @return the value
+     */
+    private double scanNumber(byte[] bytes, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+            negative = bytes[pos] == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;  // significant digits in the mantissa
+        int exponent = 0;
+        boolean anyDigit = false, exact = true;
+        boolean fraction = false;
+        for (; pos < end; pos++) {
+            byte b = bytes[pos];
+            if (b >= '0' && b <= '9') {
+                anyDigit = true;
+                if (digits < MAX_FAST_DIGITS) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (fraction) {
+                        exponent--;
+                    }
+                }
+                else {
+                    exact &= b == '0';
+                    if (!fraction) {
+                        exponent++;
+                    }
+                }
+            }
+            else if (b == '.' && !fraction) {
+                fraction = true;
+            }
+            else {
+                break;
+            }
+        }
+        if (anyDigit && pos < end && (bytes[pos] | 0x20) == 'e') {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (bytes[pos] == '-' ||
+                    bytes[pos] == '+')) {
+                negativeExponent = bytes[pos] == '-';
+                pos++;
+            }
+            int e = 0;
+            boolean anyExponentDigit = false;
+            for (; pos < end; pos++) {
+                byte b = bytes[pos];
+                if (b < '0' || b > '9') {
+                    break;
+                }
+                anyExponentDigit = true;
+                e = Math.min(e * 10 + (b - '0'), 100000);
+            }
+            exact &= anyExponentDigit;
+            exponent += negativeExponent ? -e : e;
+        }
+        scanEnd = pos;
+        scanExact = anyDigit && exact && exponent >= -22 && exponent <= 22;
+        if (!scanExact) {
+            return 0.0;
+        }
+        double value = exponent < 0 ? mantissa / POWERS[-exponent] :
+                mantissa * POWERS[exponent];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a number the fast path cannot handle with Double.parseDouble.
+     * @param bytes block of the file
+     * @param start index of the first byte of the number
+     * @param end   index just past the number
+     * @return the value
+     */
+    private double parseSlow(byte[] bytes, int start, int end) {
+        String field = new String(bytes, start, end - start,
+                StandardCharsets.UTF_8);
+        try {
+            return Double.parseDouble(field);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number \"" + field +
+                    "\" at byte " + (fileOffset + start), e);
+        }
+    }
+
+    /**
+     * Looks up the id of a label by its bytes, adding it to the dictionary
+     * when first seen.
+     * @param bytes block of the file
+     * @param start index of the first byte of the label
+     * @param end   index just past the label
+     * @return label id
+     */
+    private int labelId(byte[] bytes, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        int mask = table.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (sameBytes(labelBytes[id], bytes, start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = labelNames.size();
+        if (id == labelBytes.length) {
+            labelBytes = Arrays.copyOf(labelBytes, id * 2);
+        }
+        labelBytes[id] = Arrays.copyOfRange(bytes, start, end);
+        labelNames.add(new String(labelBytes[id], StandardCharsets.UTF_8));
+        table[slot] = id + 1;
+        if (2 * (id + 1) > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * Doubles the label hash table.
+     */
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < labelNames.size(); id++) {
+            int hash = 0;
+            for (byte b: labelBytes[id]) {
+                hash = 31 * hash + b;
+            }
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Compares stored label bytes with a field.
+     * @param label   stored label
+     * @param bytes block of the file
+     * @param start index of the first byte of the field
+     * @param end   index just past the field
+     * @return True if they are equal, False otherwise
+     */
+    private static boolean sameBytes(byte[] label, byte[] bytes, int start,
+                                     int end) {
+        if (label.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < label.length; i++) {
+            if (label[i] != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands out the rows parsed since the last take as a Dataset and starts
+     * over with empty arrays.
+     * @return a Dataset sharing my label dictionary
+     */
+    Dataset take() {
+        Dataset chunk = new Dataset(Arrays.copyOf(values, rows * dims),
+                Arrays.copyOf(labels, rows), labelNames, schema);
+        rows = 0;
+        return chunk;
+    }
+
+    /**
+     * Rows parsed since the last take.
+     * @return row count
+     */
+    int size() {
+        return rows;
+    }
+
+    /**
+     * Column layout of the file.
+     * @return the schema
+     */
+    Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * File offset of the first data row.
+     * @return byte offset
+     */
+    long getDataStart() {
+        return dataStart;
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Columnar dataset. All numeric attributes live in one contiguous row-major
+ * double array (row r occupies values[r*dimensions .. r*dimensions +
+ * dimensions-1]) and every row's class is stored as an int id into a small
+ * label dictionary, so clustering never touches a per-row object. The
+ * number of dimensions comes from the {@link Schema}.
+ *
+ * The values may instead be stored as floats, which halves the memory and
+ * the bandwidth of a pass over the data for engines that work in float
+ * precision. Either way both {@link #getValues()} and
+ * {@link #getFloatValues()} work; the one that does not match the storage
+ * converts into a new array.
+ */
+public class Dataset {
+    private final double[] values;  // row-major values, null if floats
+    private final float[] floatValues;  // row-major values, null if doubles
+    private final int[] labels; // label id per row, -1 if unlabeled
+    private final List<String> labelNames;  // label dictionary
+    private final int numRows;  // number of rows
+    private final int dimensions;   // attributes per row
+    private final Schema schema;    // column layout
+
+    /**
+     * Constructor
+     * @param values    row-major attribute values
+     * @param labels    label id per row
+     * @param labelNames    label dictionary
+     * @param schema    column layout; its feature count is the dimensions
+     */
+    public Dataset(double[] values, int[] labels, List<String> labelNames,
+                   Schema schema) {
+        this(values, null, labels, labelNames, schema);
+    }
+
+    /**
+     * Constructor for values stored in float precision
+     * @param floatValues   row-major attribute values
+     * @param labels    label id per row
+     * @param labelNames    label dictionary
+     * @param schema    column layout; its feature count is the dimensions
+     */
+    public Dataset(float[] floatValues, int[] labels, List<String> labelNames,
+                   Schema schema) {
+        this(null, floatValues, labels, labelNames, schema);
+    }
+
+    /**
+     * Constructor
+     * @param values    row-major values, or null
+     * @param floatValues   row-major values, or null if values is not
+     * @param labels    label id per row
+     * @param labelNames    label dictionary
+     * @param schema    column layout; its feature count is the dimensions
+     */
+    private Dataset(double[] values, float[] floatValues, int[] labels,
+                    List<String> labelNames, Schema schema) {
+        this.values = values;
+        this.floatValues = floatValues;
+        this.labels = labels;
+        this.labelNames = labelNames;
+        this.schema = schema;
+        this.dimensions = schema.getDimensions();
+        this.numRows = labels.length;
+    }
+
+    /**
+     * Loads a dataset, memory-mapping files in the {@link BinaryDataset}
+     * format (ending in .kmb) and parsing anything else as CSV.
+     * @param fileName  String for the file name
+     * @return a Dataset
+     * @throws IllegalArgumentException if the file cannot be read, with
+     *                                  the IOException as its cause
+     */
+    public static Dataset load(String fileName) {
+        if (!fileName.endsWith(".kmb")) {
+            return readCsv(fileName);
+        }
+        try {
+            return BinaryDataset.read(fileName);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot load " + fileName, e);
+        }
+    }
+
+    /**
+     * Takes a file name and reads in corresponding CSV data straight into
+     * the columnar arrays, discovering the schema from the first line.
+     * @param fileName  String for the file name
+     * @return a Dataset
+     */
+    public static Dataset readCsv(String fileName) {
+        return readCsv(fileName, null);
+    }
+
+    /**
+     * Takes a file name and reads in corresponding CSV data straight into
+     * the columnar arrays with the byte-level {@link CsvParser}, parsing
+     * byte ranges of the file on all cores. The delimiter is detected and
+     * surrounding whitespace is ignored. A first line that does not start
+     * with a number is skipped as a header.
+     * @param fileName  String for the file name
+     * @param schema    column layout, or null to discover it
+     * @return a Dataset
+     * @throws IllegalArgumentException if the file cannot be read, with
+     *                                  the IOException as its cause
+     */
+    public static Dataset readCsv(String fileName, Schema schema) {
+        try {
+            return CsvParser.read(fileName, schema,
+                    Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + fileName, e);
+        }
+    }
+
+    /**
+     * Joins chunks that share one label dictionary and schema into a single
+     * dataset.
+     * @param chunks    datasets in row order
+     * @param labelNames    label dictionary shared by the chunks
+     * @param schema    column layout shared by the chunks
+     * @return a Dataset holding all rows
+     */
+    public static Dataset concat(List<Dataset> chunks, List<String> labelNames,
+                                 Schema schema) {
+        int dims = schema.getDimensions();
+        int rows = 0;
+        for (Dataset d: chunks) {
+            rows += d.size();
+        }
+        double[] values = new double[rows * dims];
+        int[] labels = new int[rows];
+        int row = 0;
+        for (Dataset d: chunks) {
+            System.arraycopy(d.getValues(), 0, values, row * dims,
+                    d.size() * dims);
+            System.arraycopy(d.labels, 0, labels, row, d.size());
+            row += d.size();
+        }
+        return new Dataset(values, labels, new ArrayList<>(labelNames),
+                schema);
+    }
+
+    /**
+     * Number of rows.
+     * @return row count
+     */
+    public int size() {
+        return numRows;
+    }
+
+    /**
+     * Number of attributes per row.
+     * @return dimensions
+     */
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Column layout of the dataset.
+     * @return the schema
+     */
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Backing row-major array. Not copied; callers must not modify it. A
+     * dataset stored as floats returns a new widened copy on every call, so
+     * callers should keep the array rather than call this per row.
+     * @return array of values
+     */
+    public double[] getValues() {
+        if (values != null) {
+            return values;
+        }
+        double[] widened = new double[floatValues.length];
+        for (int i = 0; i < widened.length; i++) {
+            widened[i] = floatValues[i];
+        }
+        return widened;
+    }
+
+    /**
+     * Backing row-major array in float precision. Not copied; callers must
+     * not modify it. A dataset stored as doubles returns a new rounded copy
+     * on every call.
+     * @return array of values
+     */
+    public float[] getFloatValues() {
+        if (floatValues != null) {
+            return floatValues;
+        }
+        float[] narrowed = new float[values.length];
+        for (int i = 0; i < narrowed.length; i++) {
+            narrowed[i] = (float) values[i];
+        }
+        return narrowed;
+    }
+
+    /**
+     * Whether the values are stored as floats.
+     * @return True for float storage, False for double storage
+     */
+    public boolean isFloat() {
+        return floatValues != null;
+    }
+
+    /**
+     * The same rows with the values stored as floats, sharing the labels.
+     * Once the caller drops this dataset, the doubles can be collected.
+     * @return this dataset if it is already stored as floats, else a new one
+     */
+    public Dataset toFloat() {
+        if (floatValues != null) {
+            return this;
+        }
+        return new Dataset(getFloatValues(), labels, labelNames, schema);
+    }
+
+    /**
+     * Value of one attribute of one row.
+     * @param row   row index
+     * @param dim   attribute index
+     * @return the value
+     */
+    public double get(int row, int dim) {
+        return values != null ? values[row * dimensions + dim] :
+                floatValues[row * dimensions + dim];
+    }
+
+    /**
+     * Label id of a row.
+     * @param row   row index
+     * @return label id, or -1 if the row is unlabeled
+     */
+    public int getLabel(int row) {
+        return labels[row];
+    }
+
+    /**
+     * Backing label id column. Not copied; callers must not modify it.
+     * @return array of label ids
+     */
+    public int[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * Name of a label id.
+     * @param id    label id
+     * @return the label, or null for -1
+     */
+    public String getLabelName(int id) {
+        return id < 0 ? null : labelNames.get(id);
+    }
+
+    /**
+     * Label dictionary, indexed by label id.
+     * @return list of label names
+     */
+    public List<String> getLabelNames() {
+        return Collections.unmodifiableList(labelNames);
+    }
+
+    /**
+     * Shuffles the rows in place.
+     * @param random    source of randomness
+     */
+    public void shuffle(Random random) {
+        Object array = values != null ? values : floatValues;
+        Object tmp = values != null ? new double[dimensions] :
+                new float[dimensions];
+        for (int i = numRows - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            System.arraycopy(array, i * dimensions, tmp, 0, dimensions);
+            System.arraycopy(array, j * dimensions, array, i * dimensions,
+                    dimensions);
+            System.arraycopy(tmp, 0, array, j * dimensions, dimensions);
+            int label = labels[i];
+            labels[i] = labels[j];
+            labels[j] = label;
+        }
+    }
+
+    /**
+     * Picks distinct rows at random and copies them into a new row-major
+     * centroid array, without copying the dataset.
+     * @param numCentroids  number of rows to pick
+     * @param random    source of randomness
+     * @return array of numCentroids*dimensions values
+     */
+    public double[] sampleRows(int numCentroids, Random random) {
+        double[] centroids = new double[numCentroids * dimensions];
+        Set<Integer> picked = new HashSet<>();
+        int c = 0;
+        while (c < numCentroids) {
+            int row = random.nextInt(numRows);
+            if (picked.add(row)) {
+                for (int j = 0; j < dimensions; j++) {
+                    centroids[c * dimensions + j] = get(row, j);
+                }
+                c++;
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Builds an IrisData view of a row, for printing only. Only valid for
+     * datasets with the Iris layout.
+     * @param row   row index
+     * @return a new IrisData object
+     */
+    public IrisData getRow(int row) {
+        return new IrisData(this, row);
+    }
+}
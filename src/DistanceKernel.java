@@ -0,0 +1,204 @@
+/**
+ * Dimension-agnostic distance routines shared by every k-means path. Points
+ * and centroids are rows of row-major double arrays, or of float arrays for
+ * the float precision engine. The inner loop is a plain counted loop over
+ * the row with four independent accumulators, which the JIT unrolls and
+ * vectorizes for any dimensionality.
+ */
+final class DistanceKernel {
+    private DistanceKernel() {
+    }
+
+    /**
+     * Squared Euclidean distance between two rows.
+     * @param a one array
+     * @param aOffset   index of the first attribute in a
+     * @param b another array
+     * @param bOffset   index of the first attribute in b
+     * @param dims  attributes per row
+     * @return the squared distance
+     */
+    static double squaredDistance(double[] a, int aOffset, double[] b,
+                                  int bOffset, int dims) {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int j = 0;
+        for (; j + 3 < dims; j += 4) {
+            double d0 = a[aOffset+j] - b[bOffset+j];
+            double d1 = a[aOffset+j+1] - b[bOffset+j+1];
+            double d2 = a[aOffset+j+2] - b[bOffset+j+2];
+            double d3 = a[aOffset+j+3] - b[bOffset+j+3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; j < dims; j++) {
+            double d = a[aOffset+j] - b[bOffset+j];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Euclidean distance between two rows.
+     * @param a one array
+     * @param aOffset   index of the first attribute in a
+     * @param b another array
+     * @param bOffset   index of the first attribute in b
+     * @param dims  attributes per row
+     * @return the distance
+     */
+    static double distance(double[] a, int aOffset, double[] b, int bOffset,
+                           int dims) {
+        return Math.sqrt(squaredDistance(a, aOffset, b, bOffset, dims));
+    }
+
+    /**
+     * Finds the centroid closest to a point. Ties go to the lower index.
+     * @param values    array holding the point
+     * @param offset    index of the point's first attribute
+     * @param centroids row-major centroids
+     * @param numCentroids  number of centroids
+     * @param dims  attributes per row
+     * @return index of the nearest centroid, starting at 0
+     */
+    static int nearest(double[] values, int offset, double[] centroids,
+                       int numCentroids, int dims) {
+        int minIndex = 0;
+        double minDistance = Double.MAX_VALUE;
+        for (int c = 0; c < numCentroids; c++) {
+            double distance = squaredDistance(values, offset, centroids,
+                    c * dims, dims);
+            if (distance < minDistance) {
+                minDistance = distance;
+                minIndex = c;
+            }
+        }
+        return minIndex;
+    }
+
+    /**
+     * Squared Euclidean distance between two float rows, computed in float
+     * precision.
+     * @param a one array
+     * @param aOffset   index of the first attribute in a
+     * @param b another array
+     * @param bOffset   index of the first attribute in b
+     * @param dims  attributes per row
+     * @return the squared distance
+     */
+    static float squaredDistance(float[] a, int aOffset, float[] b,
+                                 int bOffset, int dims) {
+        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+        int j = 0;
+        for (; j + 3 < dims; j += 4) {
+            float d0 = a[aOffset+j] - b[bOffset+j];
+            float d1 = a[aOffset+j+1] - b[bOffset+j+1];
+            float d2 = a[aOffset+j+2] - b[bOffset+j+2];
+            float d3 = a[aOffset+j+3] - b[bOffset+j+3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; j < dims; j++) {
+            float d = a[aOffset+j] - b[bOffset+j];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Finds the centroid closest to a float point. Ties go to the lower
+     * index.
+     * @param values    array holding the point
+     * @param offset    index of the point's first attribute
+     * @param centroids row-major centroids
+     * @param numCentroids  number of centroids
+     * @param dims  attributes per row
+     * @return index of the nearest centroid, starting at 0
+     */
+    static int nearest(float[] values, int offset, float[] centroids,
+                       int numCentroids, int dims) {
+        int minIndex = 0;
+        float minDistance = Float.MAX_VALUE;
+        for (int c = 0; c < numCentroids; c++) {
+            float distance = squaredDistance(values, offset, centroids,
+                    c * dims, dims);
+            if (distance < minDistance) {
+                minDistance = distance;
+                minIndex = c;
+            }
+        }
+        return minIndex;
+    }
+
+    /**
+     * Adds a point to a running per-cluster sum.
+     * @param values    array holding the point
+     * @param offset    index of the point's first attribute
+     * @param sums  row-major per-cluster sums
+     * @param sumOffset index of the cluster's first sum
+     * @param dims  attributes per row
+     */
+    static void accumulate(double[] values, int offset, double[] sums,
+                           int sumOffset, int dims) {
+        for (int j = 0; j < dims; j++) {
+            sums[sumOffset+j] += values[offset+j];
+        }
+    }
+
+    /**
+     * Adds a float point to a running per-cluster sum kept in double, so
+     * large clusters do not lose precision.
+     * @param values    array holding the point
+     * @param offset    index of the point's first attribute
+     * @param sums  row-major per-cluster sums
+     * @param sumOffset index of the cluster's first sum
+     * @param dims  attributes per row
+     */
+    static void accumulate(float[] values, int offset, double[] sums,
+                           int sumOffset, int dims) {
+        for (int j = 0; j < dims; j++) {
+            sums[sumOffset+j] += values[offset+j];
+        }
+    }
+
+    /**
+     * Squared Euclidean distance between a float point and a double
+     * centroid, computed in double precision.
+     * @param values    array holding the point
+     * @param offset    index of the point's first attribute
+     * @param centroids row-major centroids
+     * @param cOffset   index of the centroid's first attribute
+     * @param dims  attributes per row
+     * @return the squared distance
+     */
+    static double squaredDistance(float[] values, int offset,
+                                  double[] centroids, int cOffset,
+                                  int dims) {
+        double s = 0.0;
+        for (int j = 0; j < dims; j++) {
+            double d = values[offset+j] - centroids[cOffset+j];
+            s += d * d;
+        }
+        return s;
+    }
+
+    /**
+     * Total distance moved by all centroids between two iterations.
+     * @param oldCentroids  row-major centroids
+     * @param newCentroids  row-major centroids
+     * @param dims  attributes per row
+     * @return sum of per-centroid distances
+     */
+    static double shift(double[] oldCentroids, double[] newCentroids,
+                        int dims) {
+        double delta = 0.0;
+        for (int offset = 0; offset < oldCentroids.length; offset += dims) {
+            delta += distance(oldCentroids, offset, newCentroids, offset,
+                    dims);
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,365 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Coordinator of k-means over several {@link DistributedWorker} processes,
+ * each of which owns a shard of the rows. Every iteration broadcasts the
+ * centroids to all workers, which cluster their shards at the same time,
+ * then sums their per-cluster counts and sums into the new centroids; no
+ * rows ever cross the network except the small sample used for seeding.
+ * Running the workers on several machines spreads both the rows and the
+ * cores; {@link #main} can also start them as local processes.
+ */
+public class DistributedKMeans implements Closeable {
+    private static final int SAMPLE_PER_CENTROID = 256; //rows for seeding
+    private static final int CONNECT_ATTEMPTS = 100;    // while workers start
+    private static final long CONNECT_RETRY_MILLIS = 100;   // between tries
+
+    private final int numCentroids; // number of clusters
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<DataInputStream> inputs = new ArrayList<>();
+    private final List<DataOutputStream> outputs = new ArrayList<>();
+    private final long[] shardRows; // rows owned by every worker
+    private final int dimensions;   // attributes per row
+    private double tolerance = KMeans.DEFAULT_TOLERANCE; // shift to stop at
+    private int maxIterations = KMeans.DEFAULT_MAX_ITERATIONS;  // cap
+    private long[] clusterSizes;    // rows per cluster, last iteration
+    private double inertia; // inertia of the last iteration
+    private int iterations; // iterations of the last fit
+
+    /**
+     * Connects to the workers, retrying while they start up.
+     * @param workers   addresses of the workers, one per shard
+     * @param numCentroids  number of clusters
+     * @throws IOException if a worker cannot be reached or the shards do
+     *                     not have the same dimensions
+     */
+    public DistributedKMeans(List<InetSocketAddress> workers,
+                             int numCentroids) throws IOException {
+        this.numCentroids = numCentroids;
+        this.shardRows = new long[workers.size()];
+        int dims = -1;
+        try {
+            for (int w = 0; w < workers.size(); w++) {
+                Socket socket = connect(workers.get(w));
+                sockets.add(socket);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                inputs.add(in);
+                outputs.add(new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream())));
+                if (in.readInt() != DistributedWorker.MAGIC) {
+                    throw new IOException(workers.get(w) +
+                            " is not a k-means worker");
+                }
+                shardRows[w] = in.readLong();
+                int shardDims = in.readInt();
+                if (dims >= 0 && shardDims != dims) {
+                    throw new IOException("Shards have " + dims + " and " +
+                            shardDims + " attributes");
+                }
+                dims = shardDims;
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+        this.dimensions = dims;
+    }
+
+    /**
+     * Opens a connection, retrying while the worker is not listening yet.
+     * @param address   address of the worker
+     * @return the connected socket
+     * @throws IOException if the last attempt fails
+     */
+    private static Socket connect(InetSocketAddress address)
+            throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address);
+                socket.setTcpNoDelay(true);
+                return socket;
+            }
+            catch (IOException e) {
+                socket.close();
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(CONNECT_RETRY_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted connecting to "
+                        + address);
+            }
+        }
+    }
+
+    /**
+     * Sets the centroid shift below which a fit has converged.
+     * @param tolerance non-negative tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Sets the number of iterations after which a fit stops even if it has
+     * not converged.
+     * @param maxIterations iteration cap
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Picks starting centroids with k-means++ over random rows of the
+     * shards, sampled in proportion to the shard sizes.
+     * @param random    source of randomness
+     * @return row-major starting centroids
+     * @throws IOException if a worker fails
+     */
+    public double[] seed(Random random) throws IOException {
+        long totalRows = 0;
+        for (long rows: shardRows) {
+            totalRows += rows;
+        }
+        if (totalRows < numCentroids) {
+            throw new IllegalArgumentException("Cannot find " + numCentroids
+                    + " clusters in " + totalRows + " rows");
+        }
+        long numSample = Math.min(totalRows,
+                (long) numCentroids * SAMPLE_PER_CENTROID);
+        int[] perShard = new int[shardRows.length];
+        int sampled = 0;
+        for (int w = 0; w < shardRows.length; w++) {
+            perShard[w] = (int) Math.max(shardRows[w] > 0 ? 1 : 0,
+                    numSample * shardRows[w] / totalRows);
+            sampled += perShard[w];
+            DataOutputStream out = outputs.get(w);
+            out.writeByte(DistributedWorker.SAMPLE);
+            out.writeInt(perShard[w]);
+            out.writeLong(random.nextLong());
+            out.flush();
+        }
+        double[] sample = new double[sampled * dimensions];
+        int i = 0;
+        for (int w = 0; w < shardRows.length; w++) {
+            DataInputStream in = inputs.get(w);
+            for (int j = 0; j < perShard[w] * dimensions; j++) {
+                sample[i++] = in.readDouble();
+            }
+        }
+        return KMeansPlusPlusSeeder.choose(sample, null, sampled, dimensions,
+                numCentroids, random);
+    }
+
+    /**
+     * Runs distributed Lloyd iterations until the centroids move less than
+     * the tolerance or the cap is reached.
+     * @param centroids row-major starting centroids, not modified
+     * @return row-major fitted centroids
+     * @throws IOException if a worker fails
+     */
+    public double[] fit(double[] centroids) throws IOException {
+        iterations = 0;
+        boolean converged = false;
+        while (!converged && iterations < maxIterations) {
+            iterations++;
+            double[] newCentroids = iterate(centroids);
+            converged = KMeans.isConverged(centroids, newCentroids,
+                    dimensions, tolerance);
+            centroids = newCentroids;
+        }
+        return centroids;
+    }
+
+    /**
+     * Broadcasts the centroids, then reduces the counts and sums of all
+     * workers into the new centroids. Clusters no worker assigned rows to
+     * keep their centroid.
+     * @param centroids row-major centroids of the current iteration
+     * @return row-major newly calculated centroids
+     * @throws IOException if a worker fails
+     */
+    private double[] iterate(double[] centroids) throws IOException {
+        for (DataOutputStream out: outputs) {
+            out.writeByte(DistributedWorker.ITERATE);
+            out.writeInt(numCentroids);
+            for (double value: centroids) {
+                out.writeDouble(value);
+            }
+            out.flush();
+        }
+        long[] counts = new long[numCentroids];
+        double[] sums = new double[numCentroids * dimensions];
+        inertia = 0.0;
+        for (DataInputStream in: inputs) {
+            for (int c = 0; c < numCentroids; c++) {
+                counts[c] += in.readLong();
+            }
+            for (int j = 0; j < sums.length; j++) {
+                sums[j] += in.readDouble();
+            }
+            inertia += in.readDouble();
+        }
+        double[] newCentroids = new double[sums.length];
+        for (int c = 0; c < numCentroids; c++) {
+            for (int j = c * dimensions; j < (c + 1) * dimensions; j++) {
+                newCentroids[j] = counts[c] == 0 ? centroids[j] :
+                        sums[j] / counts[c];
+            }
+        }
+        clusterSizes = counts;
+        return newCentroids;
+    }
+
+    /**
+     * Number of rows in every cluster in the last iteration.
+     * @return array of sizes, in cluster order
+     */
+    public long[] getClusterSizes() {
+        return clusterSizes;
+    }
+
+    /**
+     * Sum of squared distances of all rows to their centroids in the last
+     * iteration.
+     * @return the inertia
+     */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * Number of iterations the last fit ran.
+     * @return iteration count
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Tells every worker to exit and closes the connections.
+     */
+    @Override
+    public void close() {
+        for (int w = 0; w < sockets.size(); w++) {
+            try {
+                if (w < outputs.size()) {
+                    outputs.get(w).writeByte(DistributedWorker.STOP);
+                    outputs.get(w).flush();
+                }
+                sockets.get(w).close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Starts one local worker process per shard of a file, on consecutive
+     * ports, with the class path and kernel setting of this JVM.
+     * @param fileName  binary dataset
+     * @param numWorkers    number of workers and shards
+     * @param firstPort port of the first worker
+     * @return the worker processes
+     * @throws IOException if a process cannot be started
+     */
+    static List<Process> startLocalWorkers(String fileName, int numWorkers,
+                                           int firstPort) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin",
+                "java").toString();
+        int threads = Math.max(1,
+                Runtime.getRuntime().availableProcessors() / numWorkers);
+        List<Process> processes = new ArrayList<>();
+        for (int w = 0; w < numWorkers; w++) {
+            List<String> command = new ArrayList<>(Arrays.asList(java,
+                    "--add-modules", "jdk.incubator.vector",
+                    "-Dkmeans.kernel=" +
+                            System.getProperty("kmeans.kernel", "auto"),
+                    "-cp", System.getProperty("java.class.path"),
+                    "DistributedWorker", Integer.toString(firstPort + w),
+                    fileName, Integer.toString(w),
+                    Integer.toString(numWorkers), Integer.toString(threads)));
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        return processes;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: DistributedKMeans k host:port...\n" +
+                    "       DistributedKMeans k --local N data.kmb " +
+                    "[first port]");
+            return;
+        }
+        int numCentroids = Integer.parseInt(args[0]);
+        List<InetSocketAddress> workers = new ArrayList<>();
+        List<Process> processes = new ArrayList<>();
+        try {
+            if (args[1].equals("--local")) {
+                int numWorkers = Integer.parseInt(args[2]);
+                int firstPort = args.length > 4 ? Integer.parseInt(args[4]) :
+                        47100;
+                processes = startLocalWorkers(args[3], numWorkers,
+                        firstPort);
+                for (int w = 0; w < numWorkers; w++) {
+                    workers.add(new InetSocketAddress("localhost",
+                            firstPort + w));
+                }
+            }
+            else {
+                for (int i = 1; i < args.length; i++) {
+                    int colon = args[i].lastIndexOf(':');
+                    workers.add(new InetSocketAddress(
+                            args[i].substring(0, colon),
+                            Integer.parseInt(args[i].substring(colon + 1))));
+                }
+            }
+
+            try (DistributedKMeans kMeans = new DistributedKMeans(workers,
+                    numCentroids)) {
+                Long startTime = System.currentTimeMillis();
+                kMeans.fit(kMeans.seed(new Random()));
+                Long endTime = System.currentTimeMillis();
+                System.out.println("Time until convergence: " +
+                        (endTime-startTime) + "ms, " + workers.size() +
+                        " workers");
+                System.out.println("Num iterations: " +
+                        kMeans.getIterations());
+                long[] sizes = kMeans.getClusterSizes();
+                for (int c = 0; c < numCentroids; c++) {
+                    System.out.println("Cluster " + (c+1) + ": " +
+                            sizes[c] + " rows");
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            for (Process process: processes) {
+                process.destroy();
+            }
+        }
+        finally {
+            for (Process process: processes) {
+                try {
+                    process.waitFor();
+                }
+                catch (InterruptedException e) {
+                    process.destroy();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
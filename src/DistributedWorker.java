@@ -0,0 +1,228 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Worker process of {@link DistributedKMeans}. Loads one shard, a
+ * contiguous range of rows, of a {@link BinaryDataset} file and serves one
+ * coordinator at a time over a socket. For every broadcast of the
+ * centroids it runs one iteration over its shard on a local
+ * {@link ForkJoinKMeansEngine} and answers with the per-cluster counts and
+ * sums only, so the traffic per iteration does not grow with the rows.
+ * <p>
+ * The protocol is big-endian {@link DataInputStream} framing. On connect
+ * the worker sends the magic number, its row count and the dimensions.
+ * Then the coordinator sends commands of one byte:
+ * <pre>
+ *   ITERATE int k, k*dims doubles  -> k longs counts, k*dims doubles sums,
+ *                                     double inertia
+ *   SAMPLE  int rows, long seed    -> rows*dims doubles, random shard rows
+ *   STOP                           -> worker exits
+ * </pre>
+ */
+public class DistributedWorker {
+    static final int MAGIC = 0x4b4d4457;    // "KMDW"
+    static final byte ITERATE = 1;  // one Lloyd iteration over the shard
+    static final byte SAMPLE = 2;   // random rows of the shard, for seeding
+    static final byte STOP = 3; // close the connection and exit
+
+    private final Dataset shard;    // rows owned by this worker
+    private final int numThreads;   // threads of the local engine
+    private final String kernelName;    // nearest-centroid search
+    private ForkJoinKMeansEngine engine;    // engine of the current k
+
+    /**
+     * Constructor
+     * @param shard rows owned by this worker
+     * @param numThreads    threads of the local engine
+     * @param kernelName    nearest-centroid search, resolved for every k
+     */
+    public DistributedWorker(Dataset shard, int numThreads,
+                             String kernelName) {
+        this.shard = shard;
+        this.numThreads = numThreads;
+        this.kernelName = kernelName;
+    }
+
+    /**
+     * Loads shard number index of numShards equal row ranges of a file.
+     * Labels are not loaded.
+     * @param fileName  binary dataset
+     * @param index shard number, from 0
+     * @param numShards number of shards the file is split into
+     * @return the rows of the shard
+     * @throws IOException if the file cannot be read or the shard is too
+     *                     large for one array
+     */
+    public static Dataset loadShard(String fileName, int index,
+                                    int numShards) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ)) {
+            BinaryDataset.Header header = BinaryDataset.readHeader(channel,
+                    fileName);
+            long rows = header.getRows();
+            int dims = header.getDimensions();
+            long first = rows * index / numShards;
+            long last = rows * (index + 1) / numShards;
+            if ((last - first) * dims > Integer.MAX_VALUE - 8) {
+                throw new IOException("Shard " + index + " of " + fileName +
+                        " is too large; use more shards");
+            }
+            int numRows = (int) (last - first);
+            double[] values = new double[numRows * dims];
+            BinaryDataset.readRows(channel, header, first, numRows, values);
+            int[] labels = new int[numRows];
+            Arrays.fill(labels, -1);
+            return new Dataset(values, labels, new ArrayList<>(),
+                    header.getSchema());
+        }
+    }
+
+    /**
+     * Serves one coordinator until it sends STOP or disconnects.
+     * @param socket    connection to the coordinator
+     * @return True if the coordinator sent STOP
+     * @throws IOException if the connection fails
+     */
+    public boolean serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+        int dims = shard.getDimensions();
+        out.writeInt(MAGIC);
+        out.writeLong(shard.size());
+        out.writeInt(dims);
+        out.flush();
+        while (true) {
+            int command = in.read();
+            if (command < 0) {
+                return false;
+            }
+            switch (command) {
+                case ITERATE:
+                    iterate(in, out, dims);
+                    break;
+                case SAMPLE:
+                    sample(in, out, dims);
+                    break;
+                case STOP:
+                    return true;
+                default:
+                    throw new IOException("Unknown command " + command);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Answers ITERATE: runs one iteration over the shard and sends the
+     * counts, the sums and the inertia.
+     * @param in    command stream
+     * @param out   reply stream
+     * @param dims  attributes per row
+     * @throws IOException if the connection fails
+     */
+    private void iterate(DataInputStream in, DataOutputStream out, int dims)
+            throws IOException {
+        int k = in.readInt();
+        double[] centroids = new double[k * dims];
+        for (int j = 0; j < centroids.length; j++) {
+            centroids[j] = in.readDouble();
+        }
+        int[] counts = new int[k];
+        double[] sums = new double[k * dims];
+        double inertia = 0.0;
+        if (shard.size() > 0) {
+            if (engine == null || engine.getClusterSizes().length != k) {
+                if (engine != null) {
+                    engine.shutdown();
+                }
+                engine = new ForkJoinKMeansEngine(shard, k, numThreads,
+                        AssignmentKernel.forName(kernelName, k));
+            }
+            engine.iterate(centroids);
+            counts = engine.getClusterSizes();
+            sums = engine.getClusterSums();
+            inertia = engine.getInertia();
+        }
+        for (int c = 0; c < k; c++) {
+            out.writeLong(counts[c]);
+        }
+        for (double sum: sums) {
+            out.writeDouble(sum);
+        }
+        out.writeDouble(inertia);
+    }
+
+    /**
+     * Answers SAMPLE: sends rows of the shard picked at random, with
+     * repetition.
+     * @param in    command stream
+     * @param out   reply stream
+     * @param dims  attributes per row
+     * @throws IOException if the connection fails
+     */
+    private void sample(DataInputStream in, DataOutputStream out, int dims)
+            throws IOException {
+        int rows = in.readInt();
+        Random random = new Random(in.readLong());
+        for (int r = 0; r < rows; r++) {
+            int row = random.nextInt(shard.size());
+            for (int d = 0; d < dims; d++) {
+                out.writeDouble(shard.get(row, d));
+            }
+        }
+    }
+
+    /**
+     * Stops the local engine.
+     */
+    public void shutdown() {
+        if (engine != null) {
+            engine.shutdown();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: DistributedWorker port data.kmb " +
+                    "shard shards [threads]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        int numThreads = args.length > 4 ? Integer.parseInt(args[4]) :
+                Runtime.getRuntime().availableProcessors();
+        DistributedWorker worker = null;
+        try (ServerSocket server = new ServerSocket(port)) {
+            Dataset shard = loadShard(args[1], Integer.parseInt(args[2]),
+                    Integer.parseInt(args[3]));
+            worker = new DistributedWorker(shard, numThreads,
+                    System.getProperty("kmeans.kernel", "auto"));
+            System.out.println("Worker " + args[2] + ": " + shard.size() +
+                    " rows on port " + port);
+            boolean stopped = false;
+            while (!stopped) {
+                try (Socket socket = server.accept()) {
+                    stopped = worker.serve(socket);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            if (worker != null) {
+                worker.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Assignment step of k-means in float precision: the same contract as
+ * {@link AssignmentKernel} over float rows and float centroids. Float rows
+ * take half the memory bandwidth of double rows, and a SIMD register holds
+ * twice as many of them.
+ */
+interface FloatAssignmentKernel {
+    /**
+     * Finds the centroid closest to a point. Ties go to the lower index.
+     * @param values    array holding the point
+     * @param offset    index of the point's first attribute
+     * @param centroids row-major centroids
+     * @param numCentroids  number of centroids
+     * @param dims  attributes per row
+     * @return index of the nearest centroid, starting at 0
+     */
+    int nearest(float[] values, int offset, float[] centroids,
+                int numCentroids, int dims);
+
+    /**
+     * Finds the nearest centroid of every row in [fromRow, toRow) of a
+     * row-major array and writes them to out[outOffset ..].
+     * @param values    row-major points
+     * @param fromRow   first row (inclusive)
+     * @param toRow last row (exclusive)
+     * @param centroids row-major centroids
+     * @param numCentroids  number of centroids
+     * @param dims  attributes per row
+     * @param out   array to write centroid indices to
+     * @param outOffset index in out of the result for fromRow
+     */
+    default void nearestBlock(float[] values, int fromRow, int toRow,
+                              float[] centroids, int numCentroids, int dims,
+                              int[] out, int outOffset) {
+        for (int row = fromRow; row < toRow; row++) {
+            out[outOffset + row - fromRow] = nearest(values, row * dims,
+                    centroids, numCentroids, dims);
+        }
+    }
+
+    /**
+     * Short name of the kernel, for printing.
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Looks up a float kernel by name.
+     * @param name  "scalar", "vector", or "auto" for {@link #best()}
+     * @return a FloatAssignmentKernel
+     * @throws IllegalArgumentException if the name is unknown, or the
+     *          vector kernel is asked for but unavailable
+     */
+    static FloatAssignmentKernel forName(String name) {
+        switch (name) {
+            case "auto":
+                return best();
+            case "scalar":
+                return new ScalarFloatAssignmentKernel();
+            case "vector":
+                FloatAssignmentKernel vector = best();
+                if (vector instanceof ScalarFloatAssignmentKernel) {
+                    throw new IllegalArgumentException("Vector kernel needs "
+                            + "--add-modules jdk.incubator.vector");
+                }
+                return vector;
+            default:
+                throw new IllegalArgumentException("Unknown float kernel: " +
+                        name);
+        }
+    }
+
+    /**
+     * The fastest float kernel available in this JVM: the SIMD kernel when
+     * the jdk.incubator.vector module is present, the scalar one otherwise.
+     * @return a FloatAssignmentKernel
+     */
+    static FloatAssignmentKernel best() {
+        try {
+            Class<?> c = Class.forName("VectorFloatAssignmentKernel");
+            return (FloatAssignmentKernel) c.getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarFloatAssignmentKernel();
+        }
+    }
+}
@@ -0,0 +1,608 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * K-means engine on a work-stealing ForkJoinPool. Instead of one fixed
+ * partition per thread, the rows of an iteration are split adaptively: a
+ * task keeps forking off the right half of its range only while few of its
+ * forks are waiting to be stolen, so idle threads take over work wherever
+ * rows are slow, for example where pruning cannot skip them, and a busy
+ * pool is not flooded with tiny tasks. Every task assigns and accumulates
+ * its rows into the partial sums and counts of the worker thread running
+ * it, reused across iterations, so no task allocates sums and no lock is
+ * taken. After the pool finishes, the partials of the workers that took
+ * part are added up in a tree of pairwise combines, also on the pool. No
+ * other state is shared between tasks but the assignment array, which
+ * they write at disjoint rows. Since rows go to whichever worker steals
+ * them, the order of the floating-point sums can vary between runs.
+ *
+ * Built with a {@link FloatAssignmentKernel}, the engine runs in float
+ * precision: it keeps the rows as floats, which halves their memory and
+ * the bandwidth of every pass, and searches float centroids, while the
+ * sums, the centroids it returns and the inertia stay in double.
+ */
+public class ForkJoinKMeansEngine implements KMeansEngine {
+    private static final int MIN_ROWS = 1024;   // rows never split further
+    private static final int SURPLUS = 3;   // queued forks that stop splitting
+    private static final int BLOCK_SIZE = 256;  // rows per kernel call
+
+    private final ForkJoinPool pool;    // work-stealing workers
+    private final AssignmentKernel kernel;  // nearest-centroid search
+    private final FloatAssignmentKernel floatKernel;    // float search
+    private final double[] values;  // row-major values, null in float mode
+    private final float[] floatValues;  // row-major values in float mode
+    private float[] floatCentroids; // centroids of the iteration, float mode
+    private final int numCentroids; // number of clusters
+    private final int dimensions;   // attributes per row
+    private final int dataSize; // rows in the dataset
+    private HamerlyBounds bounds;   // bounds of all rows, null without pruning
+    private double[] boundCentroids;    // centroids of the bounds
+    private int[] clusterSizes; // rows per cluster in the last iteration
+    private double[] clusterSums;   // sums of the last iteration, reused
+    private double inertia; // inertia of the last iteration
+    private long distanceCount; // distances of the last pruned iteration
+    private final AtomicInteger nextSlot = new AtomicInteger(); // for workers
+    private int[] previous; // cluster of every row, null without metrics
+    private AtomicLongArray busyNanos;  // task time per worker slot
+    private long[] waitNanos;   // idle time per slot in the last iteration
+    private long assignNanos = -1;  // pool time of the last iteration
+    private long updateNanos = -1;  // averaging time of the last iteration
+    private int changed = -1;   // rows that changed cluster
+    private int iteration;  // iterations run, marks fresh worker partials
+    private ConcurrentLinkedQueue<Partial> used;   // partials of iteration
+
+    /**
+     * Constructor. Starts a pool with the given parallelism.
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
+     * @param numThreads    Number of threads in the pool
+     * @param kernel    Nearest-centroid search used by the tasks
+     */
+    public ForkJoinKMeansEngine(Dataset data, int numCentroids,
+                                int numThreads, AssignmentKernel kernel) {
+        this(data, numCentroids, numThreads, kernel, null);
+    }
+
+    /**
+     * Constructor for float precision. Starts a pool with the given
+     * parallelism. The rows are rounded to floats unless the dataset is
+     * already stored as floats.
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
+     * @param numThreads    Number of threads in the pool
+     * @param floatKernel   Float nearest-centroid search used by the tasks
+     */
+    public ForkJoinKMeansEngine(Dataset data, int numCentroids,
+                                int numThreads,
+                                FloatAssignmentKernel floatKernel) {
+        this(data, numCentroids, numThreads, null, floatKernel);
+    }
+
+    /**
+     * Constructor
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
+     * @param numThreads    Number of threads in the pool
+     * @param kernel    double search, or null in float precision
+     * @param floatKernel   float search, or null in double precision
+     */
+    private ForkJoinKMeansEngine(Dataset data, int numCentroids,
+                                 int numThreads, AssignmentKernel kernel,
+                                 FloatAssignmentKernel floatKernel) {
+        int parallelism = Math.max(1, numThreads);
+        this.pool = new ForkJoinPool(parallelism, p -> new Worker(p,
+                nextSlot.getAndIncrement() % parallelism), null, false);
+        this.kernel = kernel;
+        this.floatKernel = floatKernel;
+        this.values = floatKernel == null ? data.getValues() : null;
+        this.floatValues = floatKernel != null ? data.getFloatValues() : null;
+        this.numCentroids = numCentroids;
+        this.dimensions = data.getDimensions();
+        this.dataSize = data.size();
+    }
+
+    /**
+     * Constructor using the fastest available kernel.
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
+     * @param numThreads    Number of threads in the pool
+     */
+    public ForkJoinKMeansEngine(Dataset data, int numCentroids,
+                                int numThreads) {
+        this(data, numCentroids, numThreads, AssignmentKernel.best());
+    }
+
+    /**
+     * Constructor using a pool sized to the available cores.
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
+     */
+    public ForkJoinKMeansEngine(Dataset data, int numCentroids) {
+        this(data, numCentroids, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public double[] iterate(double[] centroids) {
+        if (pool.isShutdown()) {
+            throw new IllegalStateException("Engine has been shut down");
+        }
+        double[] halfSeparation = null, drift = null;
+        if (bounds != null) {
+            halfSeparation = HamerlyBounds.halfSeparations(centroids,
+                    numCentroids, dimensions);
+            drift = HamerlyBounds.drifts(boundCentroids, centroids,
+                    numCentroids, dimensions);
+            boundCentroids = centroids;
+        }
+        narrowCentroids(centroids);
+        AtomicLongArray busy = previous == null ? null :
+                new AtomicLongArray(pool.getParallelism());
+        busyNanos = busy;
+        iteration++;
+        used = new ConcurrentLinkedQueue<>();
+        long start = System.nanoTime();
+        Partial total = pool.invoke(new AccumulateTask(0, dataSize,
+                centroids, halfSeparation, drift));
+        if (!used.isEmpty()) {
+            Partial[] partials = used.toArray(new Partial[0]);
+            pool.invoke(new CombineTask(partials, 0, partials.length));
+            if (total != null) {
+                partials[0].add(total);
+            }
+            total = partials[0];
+        }
+        long assigned = System.nanoTime();
+
+        double[] newCentroids = new double[numCentroids * dimensions];
+        for (int c = 0; c < numCentroids; c++) {
+            int offset = c * dimensions;
+            for (int j = offset; j < offset + dimensions; j++) {
+                newCentroids[j] = total.counts[c] == 0 ? centroids[j] :
+                        total.sums[j] / total.counts[c];
+            }
+        }
+        clusterSizes = total.counts.clone();    //the worker reuses its own
+        clusterSums = total.sums;   //not copied, see getClusterSums
+        inertia = total.inertia;
+        distanceCount = total.distances;
+        if (busy != null) {
+            assignNanos = assigned - start;
+            updateNanos = System.nanoTime() - assigned;
+            changed = total.changed;
+            waitNanos = new long[busy.length()];
+            for (int i = 0; i < waitNanos.length; i++) {
+                waitNanos[i] = Math.max(0, assignNanos - busy.get(i));
+            }
+        }
+        return newCentroids;
+    }
+
+    @Override
+    public int[] assign(double[] centroids) {
+        if (pool.isShutdown()) {
+            throw new IllegalStateException("Engine has been shut down");
+        }
+        int[] assignment = new int[dataSize];
+        narrowCentroids(centroids);
+        pool.invoke(new AssignTask(0, dataSize, centroids, assignment));
+        return assignment;
+    }
+
+    /**
+     * Rounds the centroids to floats for the float search. Does nothing in
+     * double precision.
+     * @param centroids row-major centroids
+     */
+    private void narrowCentroids(double[] centroids) {
+        if (floatValues != null) {
+            floatCentroids = new float[centroids.length];
+            for (int j = 0; j < centroids.length; j++) {
+                floatCentroids[j] = (float) centroids[j];
+            }
+        }
+    }
+
+    @Override
+    public int[] getClusterSizes() {
+        return clusterSizes;
+    }
+
+    /**
+     * Attribute sums of the rows of every cluster in the last iteration,
+     * exactly as accumulated, before they were divided into the means. The
+     * array is a worker's buffer, not a copy: it is only valid until the
+     * next call of {@link #iterate}, and callers must not modify it.
+     * @return row-major sums per cluster
+     */
+    public double[] getClusterSums() {
+        return clusterSums;
+    }
+
+    @Override
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * Turns Hamerly triangle-inequality pruning on or off. The bounds of
+     * all rows live in one {@link HamerlyBounds} that tasks update at
+     * disjoint ranges, so they stay valid whichever thread runs a row.
+     * @param pruning   True to prune
+     */
+    @Override
+    public void setPruning(boolean pruning) {
+        if (pruning && floatValues != null) {
+            throw new UnsupportedOperationException(
+                    "Pruning needs double precision");
+        }
+        bounds = pruning ? new HamerlyBounds(0, dataSize, dimensions) : null;
+        boundCentroids = null;
+    }
+
+    @Override
+    public long getDistanceCount() {
+        return bounds == null ? -1 : distanceCount;
+    }
+
+    /**
+     * Turns per-iteration metrics on or off. Every task adds the time it
+     * spends on its rows to the slot of the worker that runs it, and the
+     * wait of a worker is the rest of the time the pool took.
+     * @param metrics   True to record metrics
+     */
+    @Override
+    public void setMetrics(boolean metrics) {
+        if (metrics && previous == null) {
+            previous = new int[dataSize];
+            Arrays.fill(previous, -1);
+        }
+        else if (!metrics) {
+            previous = null;
+            waitNanos = null;
+            assignNanos = -1;
+            updateNanos = -1;
+            changed = -1;
+        }
+    }
+
+    @Override
+    public long getAssignNanos() {
+        return assignNanos;
+    }
+
+    @Override
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    @Override
+    public long[] getWaitNanos() {
+        return waitNanos;
+    }
+
+    @Override
+    public int getChangedCount() {
+        return changed;
+    }
+
+    @Override
+    public int getNumThreads() {
+        return pool.getParallelism();
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Pool thread with a fixed slot in the per-worker metrics and its own
+     * partial sums. A worker that replaces one which timed out reuses a
+     * slot.
+     */
+    private static class Worker extends ForkJoinWorkerThread {
+        final int slot; // index into the per-worker metrics
+        Partial partial;    // sums of the rows I ran, reused
+        int iteration;  // iteration my partial belongs to
+        final int[] block = new int[BLOCK_SIZE];    // assignment of a block
+
+        /**
+         * Constructor
+         * @param pool  pool the worker belongs to
+         * @param slot  index into the per-worker metrics
+         */
+        Worker(ForkJoinPool pool, int slot) {
+            super(pool);
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Per-cluster sums and counts of a range of rows.
+     */
+    private static class Partial {
+        final double[] sums;    // per-cluster attribute sums
+        final int[] counts; // per-cluster row counts
+        double inertia; // squared distances of the rows to their centroids
+        long distances; // distances computed with pruning
+        int changed;    // rows that changed cluster, with metrics
+
+        /**
+         * Constructor
+         * @param numCentroids  number of clusters
+         * @param dimensions    attributes per row
+         */
+        Partial(int numCentroids, int dimensions) {
+            sums = new double[numCentroids * dimensions];
+            counts = new int[numCentroids];
+        }
+
+        /**
+         * Zeroes the partial for reuse.
+         */
+        void clear() {
+            Arrays.fill(sums, 0.0);
+            Arrays.fill(counts, 0);
+            inertia = 0.0;
+            distances = 0;
+            changed = 0;
+        }
+
+        /**
+         * Adds another partial into this one.
+         * @param other partial of another range
+         */
+        void add(Partial other) {
+            for (int j = 0; j < sums.length; j++) {
+                sums[j] += other.sums[j];
+            }
+            for (int c = 0; c < counts.length; c++) {
+                counts[c] += other.counts[c];
+            }
+            inertia += other.inertia;
+            distances += other.distances;
+            changed += other.changed;
+        }
+    }
+
+    /**
+     * Assigns and accumulates a range of rows, forking off halves of it
+     * while the pool is short of queued work.
+     */
+    private class AccumulateTask extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        private final int from; // first row (inclusive)
+        private int to; // last row (exclusive)
+        private final double[] centroids;   // row-major centroids
+        private final double[] halfSeparation; // pruning thresholds
+        private final double[] drift;   // centroid movement, null at first
+        private AccumulateTask next;    // next fork to join
+
+        /**
+         * Constructor
+         * @param from  first row (inclusive)
+         * @param to    last row (exclusive)
+         * @param centroids row-major centroids
+         * @param halfSeparation    pruning thresholds, null without pruning
+         * @param drift centroid movement, null on the first iteration
+         */
+        AccumulateTask(int from, int to, double[] centroids,
+                       double[] halfSeparation, double[] drift) {
+            this.from = from;
+            this.to = to;
+            this.centroids = centroids;
+            this.halfSeparation = halfSeparation;
+            this.drift = drift;
+        }
+
+        @Override
+        protected Partial compute() {
+            AccumulateTask forks = null;
+            while (to - from > MIN_ROWS &&
+                    getSurplusQueuedTaskCount() <= SURPLUS) {
+                int mid = (from + to) >>> 1;
+                AccumulateTask right = new AccumulateTask(mid, to, centroids,
+                        halfSeparation, drift);
+                right.next = forks;
+                forks = right;
+                right.fork();
+                to = mid;
+            }
+            Partial partial = accumulate();
+            for (; forks != null; forks = forks.next) {
+                Partial other = forks.join();
+                if (partial == null) {
+                    partial = other;
+                }
+                else if (other != null) {
+                    partial.add(other);
+                }
+            }
+            return partial;
+        }
+
+        /**
+         * Assigns my rows block by block and adds them to the partial of
+         * the worker running me. A thread outside the pool, which can help
+         * run tasks, adds them to a new partial instead.
+         * @return the new partial, or null if the worker's was used
+         */
+        private Partial accumulate() {
+            long start = busyNanos != null ? System.nanoTime() : 0;
+            Thread thread = Thread.currentThread();
+            Partial partial;
+            int[] block;
+            Partial result = null;
+            if (thread instanceof Worker &&
+                    ((Worker) thread).getPool() == pool) {
+                Worker worker = (Worker) thread;
+                if (worker.iteration != iteration) {
+                    if (worker.partial == null ||
+                            worker.partial.counts.length != numCentroids) {
+                        worker.partial = new Partial(numCentroids,
+                                dimensions);
+                    }
+                    else {
+                        worker.partial.clear();
+                    }
+                    worker.iteration = iteration;
+                    used.add(worker.partial);
+                }
+                partial = worker.partial;
+                block = worker.block;
+            }
+            else {
+                partial = new Partial(numCentroids, dimensions);
+                block = new int[BLOCK_SIZE];
+                result = partial;
+            }
+            for (int r0 = from; r0 < to; r0 += BLOCK_SIZE) {
+                int r1 = Math.min(r0 + BLOCK_SIZE, to);
+                if (bounds != null) {
+                    partial.distances += bounds.update(values, centroids,
+                            numCentroids, halfSeparation, drift, r0, r1);
+                    for (int row = r0; row < r1; row++) {
+                        block[row - r0] = bounds.getAssigned(row);
+                    }
+                }
+                else if (floatValues != null) {
+                    floatKernel.nearestBlock(floatValues, r0, r1,
+                            floatCentroids, numCentroids, dimensions, block,
+                            0);
+                }
+                else {
+                    kernel.nearestBlock(values, r0, r1, centroids,
+                            numCentroids, dimensions, block, 0);
+                }
+                for (int row = r0; row < r1; row++) {
+                    int cluster = block[row - r0];
+                    int offset = row * dimensions;
+                    if (floatValues != null) {
+                        partial.inertia += DistanceKernel.squaredDistance(
+                                floatValues, offset, centroids,
+                                cluster * dimensions, dimensions);
+                        DistanceKernel.accumulate(floatValues, offset,
+                                partial.sums, cluster * dimensions,
+                                dimensions);
+                    }
+                    else {
+                        partial.inertia += DistanceKernel.squaredDistance(
+                                values, offset, centroids,
+                                cluster * dimensions, dimensions);
+                        DistanceKernel.accumulate(values, offset,
+                                partial.sums, cluster * dimensions,
+                                dimensions);
+                    }
+                    partial.counts[cluster]++;
+                }
+                if (previous != null) {
+                    for (int row = r0; row < r1; row++) {
+                        if (previous[row] != block[row - r0]) {
+                            previous[row] = block[row - r0];
+                            partial.changed++;
+                        }
+                    }
+                }
+            }
+            if (busyNanos != null && thread instanceof Worker) {
+                busyNanos.addAndGet(((Worker) thread).slot,
+                        System.nanoTime() - start);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Adds up a range of worker partials into its first one as a tree of
+     * pairwise combines, the two halves in parallel.
+     */
+    private static class CombineTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Partial[] partials;   // partials of the workers
+        private final int from; // first partial (inclusive)
+        private final int to;   // last partial (exclusive)
+
+        /**
+         * Constructor
+         * @param partials  partials of the workers
+         * @param from  first partial (inclusive), receives the total
+         * @param to    last partial (exclusive)
+         */
+        CombineTask(Partial[] partials, int from, int to) {
+            this.partials = partials;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new CombineTask(partials, from, mid),
+                    new CombineTask(partials, mid, to));
+            partials[from].add(partials[mid]);
+        }
+    }
+
+    /**
+     * Writes the nearest centroid of a range of rows, splitting the range
+     * the same way as {@link AccumulateTask}.
+     */
+    private class AssignTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from; // first row (inclusive)
+        private int to; // last row (exclusive)
+        private final double[] centroids;   // row-major centroids
+        private final int[] assignment; // cluster index per row
+        private AssignTask next;    // next fork to join
+
+        /**
+         * Constructor
+         * @param from  first row (inclusive)
+         * @param to    last row (exclusive)
+         * @param centroids row-major centroids
+         * @param assignment    array to write cluster indices to
+         */
+        AssignTask(int from, int to, double[] centroids, int[] assignment) {
+            this.from = from;
+            this.to = to;
+            this.centroids = centroids;
+            this.assignment = assignment;
+        }
+
+        @Override
+        protected void compute() {
+            AssignTask forks = null;
+            while (to - from > MIN_ROWS &&
+                    getSurplusQueuedTaskCount() <= SURPLUS) {
+                int mid = (from + to) >>> 1;
+                AssignTask right = new AssignTask(mid, to, centroids,
+                        assignment);
+                right.next = forks;
+                forks = right;
+                right.fork();
+                to = mid;
+            }
+            if (floatValues != null) {
+                floatKernel.nearestBlock(floatValues, from, to,
+                        floatCentroids, numCentroids, dimensions, assignment,
+                        from);
+            }
+            else {
+                kernel.nearestBlock(values, from, to, centroids,
+                        numCentroids, dimensions, assignment, from);
+            }
+            for (; forks != null; forks = forks.next) {
+                forks.join();
+            }
+        }
+    }
+}
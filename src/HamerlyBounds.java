@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+/**
+ * Hamerly's accelerated assignment for one contiguous partition of rows.
+ * Every row keeps its assigned centroid, an upper bound on the distance to
+ * it and a lower bound on the distance to every other centroid. When the
+ * centroids move the bounds are loosened by how far the centroids moved,
+ * and a row is skipped when its upper bound is below both its lower bound
+ * and half the distance from its centroid to the nearest other centroid,
+ * since then no other centroid can be closer. Only rows that fail the test
+ * compute distances, so later iterations, where few rows change cluster,
+ * touch a small fraction of the n*k distances.
+ *
+ * The result is the same as the exhaustive scalar search, including ties
+ * going to the lower centroid index: skipping needs a strict inequality
+ * with a small safety margin, and rows that are not skipped are searched
+ * exhaustively.
+ */
+class HamerlyBounds {
+    private static final double MARGIN = 1e-9; // relative slack on bounds
+
+    private final int startIndex, endIndex; // rows I keep bounds for
+    private final int dimensions;   // attributes per row
+    private final int[] assigned;   // centroid of every row
+    private final double[] upper;   // bound on distance to own centroid
+    private final double[] lower;   // bound on distance to any other
+    private boolean initialized;    // false until the first full search
+    private long distanceCount;  // distances computed by the last update
+
+    /**
+     * Constructor
+     * @param startIndex    first row (inclusive)
+     * @param endIndex  last row (exclusive)
+     * @param dimensions    attributes per row
+     */
+    HamerlyBounds(int startIndex, int endIndex, int dimensions) {
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+        this.dimensions = dimensions;
+        int size = endIndex - startIndex;
+        this.assigned = new int[size];
+        this.upper = new double[size];
+        this.lower = new double[size];
+    }
+
+    /**
+     * Half the distance from every centroid to its nearest other centroid.
+     * Shared by all partitions of one iteration.
+     * @param centroids row-major centroids
+     * @param numCentroids  number of centroids
+     * @param dims  attributes per centroid
+     * @return array of half distances
+     */
+    static double[] halfSeparations(double[] centroids, int numCentroids,
+                                    int dims) {
+        double[] half = new double[numCentroids];
+        Arrays.fill(half, Double.MAX_VALUE);
+        for (int a = 0; a < numCentroids; a++) {
+            for (int b = a + 1; b < numCentroids; b++) {
+                double d = 0.5 * DistanceKernel.distance(centroids, a * dims,
+                        centroids, b * dims, dims);
+                half[a] = Math.min(half[a], d);
+                half[b] = Math.min(half[b], d);
+            }
+        }
+        return half;
+    }
+
+    /**
+     * Distance every centroid moved between two iterations. Shared by all
+     * partitions of one iteration.
+     * @param oldCentroids  row-major centroids the bounds were built for
+     * @param newCentroids  row-major centroids of this iteration
+     * @param numCentroids  number of centroids
+     * @param dims  attributes per centroid
+     * @return array of distances, or null if there are no old centroids
+     */
+    static double[] drifts(double[] oldCentroids, double[] newCentroids,
+                           int numCentroids, int dims) {
+        if (oldCentroids == null) {
+            return null;
+        }
+        double[] drift = new double[numCentroids];
+        for (int c = 0; c < numCentroids; c++) {
+            drift[c] = DistanceKernel.distance(oldCentroids, c * dims,
+                    newCentroids, c * dims, dims);
+        }
+        return drift;
+    }
+
+    /**
+     * Updates the assignment of my rows to new centroids.
+     * @param values    row-major values of the whole dataset
+     * @param centroids row-major centroids of this iteration
+     * @param numCentroids  number of centroids
+     * @param halfSeparation    result of {@link #halfSeparations}
+     * @param drift result of {@link #drifts}, null on the first iteration
+     */
+    void update(double[] values, double[] centroids, int numCentroids,
+                double[] halfSeparation, double[] drift) {
+        distanceCount = update(values, centroids, numCentroids,
+                halfSeparation, initialized ? drift : null, startIndex,
+                endIndex);
+        initialized = true;
+    }
+
+    /**
+     * Updates the assignment of the rows [fromRow, toRow) to new centroids.
+     * Disjoint ranges may be updated by different threads at once. The
+     * first update of a row must pass a null drift.
+     * @param values    row-major values of the whole dataset
+     * @param centroids row-major centroids of this iteration
+     * @param numCentroids  number of centroids
+     * @param halfSeparation    result of {@link #halfSeparations}
+     * @param drift result of {@link #drifts}, null to search every row
+     * @param fromRow   first row (inclusive)
+     * @param toRow last row (exclusive)
+     * @return number of distances computed
+     */
+    long update(double[] values, double[] centroids, int numCentroids,
+                double[] halfSeparation, double[] drift, int fromRow,
+                int toRow) {
+        long count = 0;
+        if (drift == null) {
+            for (int row = fromRow; row < toRow; row++) {
+                search(values, row, centroids, numCentroids);
+            }
+            return (long) (toRow - fromRow) * numCentroids;
+        }
+
+        //the largest and second largest drift loosen the lower bounds
+        int maxIndex = 0;
+        double maxDrift = 0.0, secondDrift = 0.0;
+        for (int c = 0; c < numCentroids; c++) {
+            if (drift[c] > maxDrift) {
+                secondDrift = maxDrift;
+                maxDrift = drift[c];
+                maxIndex = c;
+            }
+            else if (drift[c] > secondDrift) {
+                secondDrift = drift[c];
+            }
+        }
+
+        for (int row = fromRow; row < toRow; row++) {
+            int i = row - startIndex;
+            int a = assigned[i];
+            upper[i] += drift[a];
+            lower[i] -= a == maxIndex ? secondDrift : maxDrift;
+
+            double bound = Math.max(halfSeparation[a], lower[i]);
+            if (upper[i] < bound * (1.0 - MARGIN)) {
+                continue;
+            }
+            //tighten the upper bound and test again
+            upper[i] = DistanceKernel.distance(values, row * dimensions,
+                    centroids, a * dimensions, dimensions);
+            count++;
+            if (upper[i] < bound * (1.0 - MARGIN)) {
+                continue;
+            }
+            search(values, row, centroids, numCentroids);
+            count += numCentroids;
+        }
+        return count;
+    }
+
+    /**
+     * Finds the nearest and second nearest centroid of a row and resets its
+     * bounds to their exact distances.
+     * @param values    row-major values of the whole dataset
+     * @param row   row index
+     * @param centroids row-major centroids
+     * @param numCentroids  number of centroids
+     */
+    private void search(double[] values, int row, double[] centroids,
+                        int numCentroids) {
+        int offset = row * dimensions;
+        int minIndex = 0;
+        double minDistance = Double.MAX_VALUE;
+        double secondDistance = Double.MAX_VALUE;
+        for (int c = 0; c < numCentroids; c++) {
+            double d = DistanceKernel.squaredDistance(values, offset,
+                    centroids, c * dimensions, dimensions);
+            if (d < minDistance) {
+                secondDistance = minDistance;
+                minDistance = d;
+                minIndex = c;
+            }
+            else if (d < secondDistance) {
+                secondDistance = d;
+            }
+        }
+        int i = row - startIndex;
+        assigned[i] = minIndex;
+        upper[i] = Math.sqrt(minDistance);
+        lower[i] = Math.sqrt(secondDistance);
+    }
+
+    /**
+     * Centroid of a row after the last update.
+     * @param row   row index
+     * @return index of the centroid, starting at 0
+     */
+    int getAssigned(int row) {
+        return assigned[row - startIndex];
+    }
+
+    /**
+     * Number of point-to-centroid distances the last update computed.
+     * @return distance count
+     */
+    long getDistanceCount() {
+        return distanceCount;
+    }
+}
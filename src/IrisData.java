@@ -1,7 +1,11 @@
 /**
- * Class representing Iris data read from file
+ * Class representing Iris data read from file. Clustering runs on the
+ * columnar {@link Dataset} with any {@link Schema}; IrisData is only a view
+ * of one row (or of a centroid) of {@link Schema#IRIS} data for printing.
  */
 class IrisData {
+    public static final int NUM_ATTRIBUTES = 4; // numeric attributes per row
+
     public double sepialLength; // double representing sepial length in cm
     public double sepialWidth;  // double representing sepial width in cm
     public double petalLength;  // double representing petal length in cm
@@ -36,6 +40,58 @@ class IrisData {
         this.petalWidth = pw;
     }
 
+    /**
+     * Overloaded constructor for a view of one row of a Dataset
+     * @param data  Dataset to read from
+     * @param row   row index
+     */
+    public IrisData(Dataset data, int row) {
+        this(copyRow(data, row), 0);
+        this.irisClass = data.getLabelName(data.getLabel(row));
+    }
+
+    /**
+     * Overloaded constructor for a view of a row-major array, such as a
+     * centroid array
+     * @param values    row-major array
+     * @param offset    index of the first attribute
+     */
+    public IrisData(double[] values, int offset) {
+        this.sepialLength = values[offset];
+        this.sepialWidth = values[offset+1];
+        this.petalLength = values[offset+2];
+        this.petalWidth = values[offset+3];
+    }
+
+    /**
+     * Copies one row of a dataset with the Iris layout, whether its values
+     * are stored as doubles or floats.
+     * @param data  Dataset to read from
+     * @param row   row index
+     * @return array of the row's attributes
+     */
+    private static double[] copyRow(Dataset data, int row) {
+        double[] values = new double[checkDimensions(data)];
+        for (int j = 0; j < values.length; j++) {
+            values[j] = data.get(row, j);
+        }
+        return values;
+    }
+
+    /**
+     * Makes sure a dataset has the Iris layout before viewing its rows.
+     * @param data  Dataset to check
+     * @return the dimensions of the dataset
+     */
+    private static int checkDimensions(Dataset data) {
+        if (data.getDimensions() != NUM_ATTRIBUTES) {
+            throw new IllegalArgumentException("IrisData needs " +
+                    NUM_ATTRIBUTES + " attributes, dataset has " +
+                    data.getDimensions());
+        }
+        return NUM_ATTRIBUTES;
+    }
+
     /**
      * String representation of data
      * @return a String
@@ -47,4 +103,4 @@ class IrisData {
                 this.irisClass + ")";
         return s;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,108 @@
+/**
+ * What one Lloyd iteration of a {@link KMeans} run did and where its time
+ * went. Times are wall-clock nanoseconds measured by the engine; the
+ * assignment step includes the accumulation of the partial sums that the
+ * engines fuse into it.
+ */
+public class IterationMetrics {
+    private final int iteration;    // iteration number, starting at 1
+    private final long assignNanos; // assignment step
+    private final long updateNanos; // centroid step
+    private final long[] waitNanos; // idle time per thread
+    private final int changed;  // rows that changed cluster
+    private final double shift; // centroid movement
+    private final double inertia;   // squared distances to the centroids
+    private final long distanceCount;   // distances computed with pruning
+
+    /**
+     * Constructor
+     * @param iteration iteration number, starting at 1
+     * @param assignNanos   time of the assignment step
+     * @param updateNanos   time of the centroid step
+     * @param waitNanos time every thread spent waiting for the others
+     * @param changed   rows whose cluster changed
+     * @param shift centroid movement, as used by the convergence test
+     * @param inertia   squared distances of the rows to their centroids
+     * @param distanceCount distances computed, or -1 without pruning
+     */
+    IterationMetrics(int iteration, long assignNanos, long updateNanos,
+                     long[] waitNanos, int changed, double shift,
+                     double inertia, long distanceCount) {
+        this.iteration = iteration;
+        this.assignNanos = assignNanos;
+        this.updateNanos = updateNanos;
+        this.waitNanos = waitNanos;
+        this.changed = changed;
+        this.shift = shift;
+        this.inertia = inertia;
+        this.distanceCount = distanceCount;
+    }
+
+    /**
+     * Iteration number.
+     * @return number, starting at 1
+     */
+    public int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * Time the rows took to be assigned and accumulated.
+     * @return nanoseconds
+     */
+    public long getAssignNanos() {
+        return assignNanos;
+    }
+
+    /**
+     * Time the partial sums took to be averaged into new centroids.
+     * @return nanoseconds
+     */
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    /**
+     * Time every thread spent waiting for the others, at the barriers of
+     * the pool engine or idle in the fork/join pool. A thread that waits
+     * much less than the others is a straggler.
+     * @return nanoseconds per thread
+     */
+    public long[] getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * Rows assigned to a different cluster than in the previous
+     * iteration; every row counts as changed in the first one.
+     * @return row count
+     */
+    public int getChanged() {
+        return changed;
+    }
+
+    /**
+     * Movement of the centroids, compared against the tolerance.
+     * @return the shift
+     */
+    public double getShift() {
+        return shift;
+    }
+
+    /**
+     * Sum of squared distances of the rows to the centroids they were
+     * assigned to.
+     * @return the inertia
+     */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * Distances computed by a pruned iteration.
+     * @return distance count, or -1 without pruning
+     */
+    public long getDistanceCount() {
+        return distanceCount;
+    }
+}
@@ -0,0 +1,483 @@
+import java.util.*;
+import java.util.function.DoublePredicate;
+
+/**
+ * Configured k-means run. Holds the settings that used to be constants in
+ * the mains, number of clusters, threads, tolerance, iteration cap,
+ * backend, kernel and seeding, and runs Lloyd iterations on any
+ * {@link KMeansEngine} until the centroids move less than the tolerance or
+ * the cap is reached. Built with {@link #builder()}; one instance can fit
+ * any number of datasets.
+ */
+public class KMeans {
+    public static final double DEFAULT_TOLERANCE = 0.01; // centroid shift
+    public static final int DEFAULT_MAX_ITERATIONS = 300; // iteration cap
+
+    private final int numCentroids; // number of clusters
+    private final int numThreads;   // threads of the engine and the seeding
+    private final double tolerance; // shift below which the run converged
+    private final int maxIterations;    // Lloyd iterations at most
+    private final String engineName;    // backend, see KMeansEngine.forName
+    private final AssignmentKernel kernel;  // nearest-centroid search
+    private final FloatAssignmentKernel floatKernel;    // null for doubles
+    private final CentroidSeeder seeder;    // starting centroids
+    private final boolean pruning;  // Hamerly bounds on or off
+    private final Long seed;    // seed of every fit, null for a random one
+    private final List<KMeansListener> listeners;   // told every iteration
+
+    /**
+     * Constructor
+     * @param builder   settings to copy
+     */
+    private KMeans(Builder builder) {
+        this.numCentroids = builder.numCentroids;
+        this.numThreads = builder.engineName.equals("sequential") ||
+                builder.engineName.equals("kdtree") ? 1 : builder.numThreads;
+        this.tolerance = builder.tolerance;
+        this.maxIterations = builder.maxIterations;
+        this.engineName = builder.engineName;
+        boolean floats = builder.precision.equals("float");
+        this.kernel = floats ? null : AssignmentKernel.forName(
+                builder.kernelName, numCentroids);
+        this.floatKernel = floats ?
+                FloatAssignmentKernel.forName(builder.kernelName) : null;
+        this.seeder = CentroidSeeder.forName(builder.seedingName, numThreads);
+        this.pruning = builder.pruning;
+        this.seed = builder.seed;
+        this.listeners = new ArrayList<>(builder.listeners);
+    }
+
+    /**
+     * Starts configuring a run with the defaults: 3 clusters, one thread
+     * per core on the fork/join engine, the fastest kernel and seeding,
+     * tolerance {@value #DEFAULT_TOLERANCE} and at most
+     * {@value #DEFAULT_MAX_ITERATIONS} iterations.
+     * @return a new Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Seeds the centroids and clusters a dataset.
+     * @param data  Dataset to cluster
+     * @return the result of the run
+     * @throws IllegalArgumentException if the dataset has fewer rows than
+     *                                  clusters
+     */
+    public KMeansResult fit(Dataset data) {
+        return fit(data, (DoublePredicate) null);
+    }
+
+    /**
+     * Seeds the centroids and clusters a dataset, giving up once a check of
+     * the inertia after an iteration fails.
+     * @param data  Dataset to cluster
+     * @param cancel    told the inertia of every iteration, True to give
+     *                  up; null to never give up
+     * @return the result of the run, or null if it was cancelled
+     */
+    KMeansResult fit(Dataset data, DoublePredicate cancel) {
+        if (data.size() < numCentroids) {
+            throw new IllegalArgumentException("Cannot find " + numCentroids
+                    + " clusters in " + data.size() + " rows");
+        }
+        return fit(data, seeder.seed(data, numCentroids, newRandom()),
+                cancel);
+    }
+
+    /**
+     * Source of randomness of a fit: seeded with the Builder's seed, or a
+     * random one.
+     * @return a new Random
+     */
+    Random newRandom() {
+        return seed == null ? new Random() : new Random(seed);
+    }
+
+    /**
+     * Clusters a dataset starting from the given centroids.
+     * @param data  Dataset to cluster
+     * @param centroids row-major starting centroids, not modified
+     * @return the result of the run
+     * @throws IllegalArgumentException if there are not numCentroids
+     *                                  centroids of the dataset's dimensions
+     */
+    public KMeansResult fit(Dataset data, double[] centroids) {
+        return fit(data, centroids, null);
+    }
+
+    /**
+     * Clusters a dataset starting from the given centroids, giving up once
+     * a check of the inertia after an iteration fails.
+     * @param data  Dataset to cluster
+     * @param centroids row-major starting centroids, not modified
+     * @param cancel    told the inertia of every iteration, True to give
+     *                  up; null to never give up
+     * @return the result of the run, or null if it was cancelled
+     */
+    KMeansResult fit(Dataset data, double[] centroids,
+                     DoublePredicate cancel) {
+        int dims = data.getDimensions();
+        if (centroids.length != numCentroids * dims) {
+            throw new IllegalArgumentException("Expected " + numCentroids +
+                    " centroids of " + dims + " attributes");
+        }
+        KMeansEngine engine = floatKernel != null ?
+                new ForkJoinKMeansEngine(data, numCentroids, numThreads,
+                        floatKernel) :
+                KMeansEngine.forName(engineName, data, numCentroids,
+                        numThreads, kernel);
+        try {
+            engine.setPruning(pruning);
+            engine.setMetrics(!listeners.isEmpty());
+            int iterations = 0;
+            boolean converged = false;
+            while (!converged && iterations < maxIterations) {
+                iterations++;
+                double[] newCentroids = engine.iterate(centroids);
+                double shift = DistanceKernel.shift(centroids, newCentroids,
+                        dims);
+                converged = shift < tolerance;
+                centroids = newCentroids;
+                if (!listeners.isEmpty()) {
+                    IterationMetrics metrics = new IterationMetrics(
+                            iterations, engine.getAssignNanos(),
+                            engine.getUpdateNanos(), engine.getWaitNanos(),
+                            engine.getChangedCount(), shift,
+                            engine.getInertia(), engine.getDistanceCount());
+                    for (KMeansListener listener: listeners) {
+                        listener.onIteration(metrics);
+                    }
+                }
+                if (cancel != null && !converged &&
+                        cancel.test(engine.getInertia())) {
+                    return null;
+                }
+            }
+            return new KMeansResult(centroids, engine.assign(centroids),
+                    numCentroids, dims, iterations, converged,
+                    engine.getInertia());
+        }
+        finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Given two row-major centroid arrays, check to see if their differences
+     * are significant by looking at the distance between a and a', b and b',
+     * c and c'
+     * @param oldCentroids row-major centroids
+     * @param newCentroids row-major centroids
+     * @param dims  attributes per centroid
+     * @param tolerance difference allowed
+     * @return True if difference is lower than tolerance, False otherwise
+     */
+    static boolean isConverged(double[] oldCentroids, double[] newCentroids,
+                               int dims, double tolerance) {
+        return DistanceKernel.shift(oldCentroids, newCentroids, dims) <
+                tolerance;
+    }
+
+    /**
+     * Number of clusters.
+     * @return k
+     */
+    public int getNumCentroids() {
+        return numCentroids;
+    }
+
+    /**
+     * Threads of the engine and the seeding, 1 for "sequential" and
+     * "kdtree".
+     * @return thread count
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Centroid shift below which a run has converged.
+     * @return the tolerance
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Lloyd iterations a run stops after if it has not converged.
+     * @return the iteration cap
+     */
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    /**
+     * Name of the backend.
+     * @return "sequential", "pool", "forkjoin" or "kdtree"
+     */
+    public String getEngineName() {
+        return engineName;
+    }
+
+    /**
+     * Name of the nearest-centroid search, after resolving "auto".
+     * @return the kernel name
+     */
+    public String getKernelName() {
+        return floatKernel != null ? floatKernel.getName() : kernel.getName();
+    }
+
+    /**
+     * Nearest-centroid search of the double engines, for front ends that
+     * drive an engine themselves.
+     * @return the kernel, null in float precision
+     */
+    AssignmentKernel getKernel() {
+        return kernel;
+    }
+
+    /**
+     * Seeding method, for front ends that seed the centroids themselves.
+     * @return the seeder
+     */
+    CentroidSeeder getSeeder() {
+        return seeder;
+    }
+
+    /**
+     * Whether the engine works on float rows.
+     * @return True in float precision
+     */
+    public boolean isFloat() {
+        return floatKernel != null;
+    }
+
+    /**
+     * Name of the seeding method, after resolving "auto".
+     * @return the seeding name
+     */
+    public String getSeedingName() {
+        return seeder.getName();
+    }
+
+    /**
+     * Whether Hamerly triangle-inequality pruning is on.
+     * @return True if pruning
+     */
+    public boolean isPruning() {
+        return pruning;
+    }
+
+    /**
+     * Settings of a {@link KMeans} run. Names are checked by {@link #build()}.
+     */
+    public static class Builder {
+        private int numCentroids = 3;   // number of clusters
+        private int numThreads = Runtime.getRuntime().availableProcessors();
+        private double tolerance = DEFAULT_TOLERANCE;   // shift allowed
+        private int maxIterations = DEFAULT_MAX_ITERATIONS; // iteration cap
+        private String engineName = "forkjoin"; // backend
+        private String kernelName = "auto"; // nearest-centroid search
+        private String seedingName = "auto";    // starting centroids
+        private boolean pruning;    // Hamerly bounds on or off
+        private String precision = "double";    // of the rows
+        private Long seed;  // seed of every fit, null for a random one
+        private final List<KMeansListener> listeners = new ArrayList<>();
+
+        /**
+         * Constructor with the defaults of {@link KMeans#builder()}.
+         */
+        private Builder() {
+        }
+
+        /**
+         * Sets the number of clusters.
+         * @param numCentroids  k, at least 1
+         * @return this Builder
+         */
+        public Builder numCentroids(int numCentroids) {
+            this.numCentroids = numCentroids;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads of the engine and the seeding.
+         * @param numThreads    thread count, at least 1
+         * @return this Builder
+         */
+        public Builder numThreads(int numThreads) {
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        /**
+         * Sets the centroid shift below which a run has converged.
+         * @param tolerance non-negative tolerance
+         * @return this Builder
+         */
+        public Builder tolerance(double tolerance) {
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        /**
+         * Sets the number of Lloyd iterations after which a run stops even
+         * if it has not converged.
+         * @param maxIterations iteration cap, at least 1
+         * @return this Builder
+         */
+        public Builder maxIterations(int maxIterations) {
+            this.maxIterations = maxIterations;
+            return this;
+        }
+
+        /**
+         * Sets the backend.
+         * @param engineName    "sequential", "pool", "forkjoin" or
+         *                      "kdtree"
+         * @return this Builder
+         */
+        public Builder engine(String engineName) {
+            this.engineName = engineName;
+            return this;
+        }
+
+        /**
+         * Sets the nearest-centroid search.
+         * @param kernelName    "scalar", "vector", "blocked" or "auto"
+         * @return this Builder
+         */
+        public Builder kernel(String kernelName) {
+            this.kernelName = kernelName;
+            return this;
+        }
+
+        /**
+         * Sets the seeding method.
+         * @param seedingName   "random", "kmeans++", "kmeans||" or "auto"
+         * @return this Builder
+         */
+        public Builder seeding(String seedingName) {
+            this.seedingName = seedingName;
+            return this;
+        }
+
+        /**
+         * Turns Hamerly triangle-inequality pruning on or off.
+         * @param pruning   True to prune
+         * @return this Builder
+         */
+        public Builder pruning(boolean pruning) {
+            this.pruning = pruning;
+            return this;
+        }
+
+        /**
+         * Sets the precision the rows are clustered in. Float halves the
+         * memory and bandwidth of the rows and runs on the fork/join engine
+         * without pruning; sums and centroids stay in double either way.
+         * @param precision "double" or "float"
+         * @return this Builder
+         */
+        public Builder precision(String precision) {
+            this.precision = precision;
+            return this;
+        }
+
+        /**
+         * Makes every fit seed its centroids from the same random seed.
+         * @param seed  seed of the Random
+         * @return this Builder
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Adds a listener that is told the metrics of every iteration.
+         * Engines only time their steps and count changed rows while a run
+         * has listeners.
+         * @param listener  the listener
+         * @return this Builder
+         */
+        public Builder listener(KMeansListener listener) {
+            listeners.add(listener);
+            return this;
+        }
+
+        /**
+         * Copy of these settings for one restart that runs on a thread of
+         * its own: k and the seed are set, and the engine runs on the
+         * calling thread instead of a pool of one thread. That is the
+         * sequential engine, except for the kdtree engine, which is single
+         * threaded already, and for float precision, which only the
+         * fork/join engine has. This Builder is not changed.
+         * @param numCentroids  number of clusters of the restart
+         * @param seed  seed of the restart
+         * @return a new Builder
+         */
+        Builder copyForRestart(int numCentroids, long seed) {
+            Builder copy = new Builder();
+            copy.numCentroids = numCentroids;
+            copy.numThreads = 1;
+            copy.tolerance = tolerance;
+            copy.maxIterations = maxIterations;
+            copy.engineName = engineName.equals("kdtree") ||
+                    precision.equals("float") ? engineName : "sequential";
+            copy.kernelName = kernelName;
+            copy.seedingName = seedingName;
+            copy.pruning = pruning;
+            copy.precision = precision;
+            copy.seed = seed;
+            copy.listeners.addAll(listeners);
+            return copy;
+        }
+
+        /**
+         * Checks the settings and creates the run.
+         * @return a KMeans
+         * @throws IllegalArgumentException if a setting is out of range or
+         *                                  a name is unknown
+         */
+        public KMeans build() {
+            if (numCentroids < 1) {
+                throw new IllegalArgumentException("Need at least 1 cluster");
+            }
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("Need at least 1 thread");
+            }
+            if (!(tolerance >= 0.0)) {
+                throw new IllegalArgumentException("Bad tolerance: " +
+                        tolerance);
+            }
+            if (maxIterations < 1) {
+                throw new IllegalArgumentException(
+                        "Need at least 1 iteration");
+            }
+            if (!engineName.equals("sequential") &&
+                    !engineName.equals("pool") &&
+                    !engineName.equals("forkjoin") &&
+                    !engineName.equals("kdtree")) {
+                throw new IllegalArgumentException("Unknown engine: " +
+                        engineName);
+            }
+            if (pruning && engineName.equals("kdtree")) {
+                throw new IllegalArgumentException("The kdtree engine " +
+                        "prunes with its tree, not with --pruning");
+            }
+            if (!precision.equals("double") && !precision.equals("float")) {
+                throw new IllegalArgumentException("Unknown precision: " +
+                        precision);
+            }
+            if (precision.equals("float") && (pruning ||
+                    !engineName.equals("forkjoin"))) {
+                throw new IllegalArgumentException("Float precision runs " +
+                        "on the forkjoin engine without pruning");
+            }
+            return new KMeans(this);
+        }
+    }
+}
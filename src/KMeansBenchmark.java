@@ -0,0 +1,359 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Benchmark suite for the k-means engines. Every case is warmed up before
+ * it is measured, so the JIT has compiled the hot loops, and is then timed
+ * over several runs with System.nanoTime, reporting the mean, standard
+ * deviation, minimum and median. Engine cases run a fixed number of Lloyd
+ * iterations from the same seeds on synthetic Gaussian blobs across n, d,
+ * k and thread counts, with the engine started outside the timed region.
+ * Micro cases time the squared distance and the centroid averaging step
+ * on their own.
+ */
+public class KMeansBenchmark {
+    private static final int ITERATIONS = 10;   // Lloyd iterations per run
+    private static final int MICRO_ROWS = 1 << 16;  // rows of micro cases
+    private static final String USAGE =
+            "Usage: KMeansBenchmark [options]\n" +
+            "  --quick                small grid for a smoke run\n" +
+            "  --warmup N             warm-up runs per case (5)\n" +
+            "  --runs N               measured runs per case (10)\n" +
+            "  --threads LIST         thread counts (1,2,4,..,cores)\n" +
+            "  --engines LIST         engines (sequential,pool,forkjoin," +
+            "float,kdtree)\n" +
+            "  --csv FILE             also write the results to FILE\n" +
+            "  -h, --help             print this message";
+
+    private static volatile double sink;    // keeps results alive
+
+    private final int warmup;   // warm-up runs per case
+    private final int runs; // measured runs per case
+    private final List<String> results = new ArrayList<>(); // CSV rows
+
+    /**
+     * Constructor
+     * @param warmup    warm-up runs per case
+     * @param runs  measured runs per case
+     */
+    KMeansBenchmark(int warmup, int runs) {
+        this.warmup = warmup;
+        this.runs = runs;
+    }
+
+    /**
+     * Summary of the measured runs of one case.
+     */
+    static class Stats {
+        final double mean;  // average
+        final double stddev;    // sample standard deviation
+        final double min;   // fastest run
+        final double median;    // middle run
+
+        /**
+         * Constructor
+         * @param samples   one time per measured run
+         */
+        Stats(double[] samples) {
+            double[] sorted = samples.clone();
+            Arrays.sort(sorted);
+            double sum = 0.0;
+            for (double s: sorted) {
+                sum += s;
+            }
+            mean = sum / sorted.length;
+            double squares = 0.0;
+            for (double s: sorted) {
+                squares += (s - mean) * (s - mean);
+            }
+            stddev = sorted.length > 1 ?
+                    Math.sqrt(squares / (sorted.length - 1)) : 0.0;
+            min = sorted[0];
+            int mid = sorted.length / 2;
+            median = sorted.length % 2 == 1 ? sorted[mid] :
+                    (sorted[mid - 1] + sorted[mid]) / 2.0;
+        }
+    }
+
+    /**
+     * Generates k Gaussian blobs of unit spread around centers drawn
+     * uniformly from [0, 10) in every attribute. Rows are labeled with
+     * their blob.
+     * @param numRows   rows to generate
+     * @param dims  attributes per row
+     * @param numBlobs  number of blobs
+     * @param seed  seed of the Random
+     * @return a Dataset
+     */
+    static Dataset blobs(int numRows, int dims, int numBlobs, long seed) {
+        Random random = new Random(seed);
+        double[] centers = new double[numBlobs * dims];
+        for (int j = 0; j < centers.length; j++) {
+            centers[j] = random.nextDouble() * 10.0;
+        }
+        double[] values = new double[numRows * dims];
+        int[] labels = new int[numRows];
+        for (int row = 0; row < numRows; row++) {
+            int blob = random.nextInt(numBlobs);
+            labels[row] = blob;
+            for (int j = 0; j < dims; j++) {
+                values[row * dims + j] = centers[blob * dims + j] +
+                        random.nextGaussian();
+            }
+        }
+        List<String> featureNames = new ArrayList<>();
+        for (int j = 0; j < dims; j++) {
+            featureNames.add("x" + j);
+        }
+        List<String> labelNames = new ArrayList<>();
+        for (int b = 0; b < numBlobs; b++) {
+            labelNames.add("blob" + b);
+        }
+        return new Dataset(values, labels, labelNames,
+                new Schema(featureNames, "blob"));
+    }
+
+    /**
+     * Times one case: runs it warmup times untimed, then runs times timed.
+     * @param task  the case; returns a value that is kept alive
+     * @param operations    operations per run, to report time per operation
+     * @return statistics of the time per operation in nanoseconds
+     */
+    Stats measure(DoubleSupplier task, long operations) {
+        for (int i = 0; i < warmup; i++) {
+            sink += task.getAsDouble();
+        }
+        double[] samples = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            sink += task.getAsDouble();
+            samples[i] = (double) (System.nanoTime() - start) / operations;
+        }
+        return new Stats(samples);
+    }
+
+    /**
+     * Benchmarks ITERATIONS Lloyd iterations of an engine, reporting the
+     * time per iteration.
+     * @param data  Dataset to cluster
+     * @param numCentroids  number of clusters
+     * @param engineName    engine, see {@link KMeansEngine#forName}, or
+     *                      "float" for the fork/join engine in float
+     *                      precision
+     * @param numThreads    threads of the engine
+     * @return statistics in nanoseconds per iteration
+     */
+    Stats benchmarkEngine(Dataset data, int numCentroids, String engineName,
+                          int numThreads) {
+        double[] seeds = new KMeansPlusPlusSeeder().seed(data, numCentroids,
+                new Random(1));
+        KMeansEngine engine = engineName.equals("float") ?
+                new ForkJoinKMeansEngine(data, numCentroids, numThreads,
+                        FloatAssignmentKernel.best()) :
+                KMeansEngine.forName(engineName, data, numCentroids,
+                        numThreads, AssignmentKernel.best(numCentroids));
+        try {
+            return measure(() -> {
+                double[] centroids = seeds;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    centroids = engine.iterate(centroids);
+                }
+                return centroids[0];
+            }, ITERATIONS);
+        }
+        finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Benchmarks the squared distance of every row of a block to one
+     * centroid, reporting the time per distance.
+     * @param dims  attributes per row
+     * @return statistics in nanoseconds per distance
+     */
+    Stats benchmarkDistance(int dims) {
+        Dataset data = blobs(MICRO_ROWS, dims, 1, 2);
+        double[] values = data.getValues();
+        double[] centroid = Arrays.copyOf(values, dims);
+        return measure(() -> {
+            double sum = 0.0;
+            for (int row = 0; row < MICRO_ROWS; row++) {
+                sum += DistanceKernel.squaredDistance(values, row * dims,
+                        centroid, 0, dims);
+            }
+            return sum;
+        }, MICRO_ROWS);
+    }
+
+    /**
+     * Benchmarks the centroid averaging step alone: summing every row into
+     * its cluster and dividing by the cluster sizes, reporting the time per
+     * row.
+     * @param dims  attributes per row
+     * @param numCentroids  number of clusters
+     * @return statistics in nanoseconds per row
+     */
+    Stats benchmarkAveraging(int dims, int numCentroids) {
+        Dataset data = blobs(MICRO_ROWS, dims, numCentroids, 3);
+        double[] values = data.getValues();
+        int[] assignment = data.getLabels();
+        return measure(() -> {
+            double[] sums = new double[numCentroids * dims];
+            int[] counts = new int[numCentroids];
+            for (int row = 0; row < MICRO_ROWS; row++) {
+                DistanceKernel.accumulate(values, row * dims, sums,
+                        assignment[row] * dims, dims);
+                counts[assignment[row]]++;
+            }
+            for (int c = 0; c < numCentroids; c++) {
+                for (int j = c * dims; j < (c + 1) * dims; j++) {
+                    sums[j] /= Math.max(1, counts[c]);
+                }
+            }
+            return sums[0];
+        }, MICRO_ROWS);
+    }
+
+    /**
+     * Prints one result line and keeps it for the CSV file.
+     * @param name  benchmark name
+     * @param n rows, or 0 if not applicable
+     * @param d attributes per row
+     * @param k clusters, or 0 if not applicable
+     * @param threads   threads, or 0 if not applicable
+     * @param engine    engine name, or "-"
+     * @param unit  unit of the times
+     * @param stats times in nanoseconds
+     * @param scale divisor from nanoseconds to the unit
+     */
+    void report(String name, int n, int d, int k, int threads, String engine,
+                String unit, Stats stats, double scale) {
+        System.out.printf(Locale.ROOT,
+                "%-9s n=%-8d d=%-3d k=%-3d t=%-2d %-10s %10.3f +- %8.3f " +
+                "(min %10.3f, median %10.3f) %s%n", name, n, d, k, threads,
+                engine, stats.mean / scale, stats.stddev / scale,
+                stats.min / scale, stats.median / scale, unit);
+        results.add(String.format(Locale.ROOT,
+                "%s,%d,%d,%d,%d,%s,%s,%.6f,%.6f,%.6f,%.6f", name, n, d, k,
+                threads, engine, unit, stats.mean / scale,
+                stats.stddev / scale, stats.min / scale,
+                stats.median / scale));
+    }
+
+    /**
+     * Writes every result reported so far as CSV.
+     * @param fileName  file to write
+     * @throws IOException if the file cannot be written
+     */
+    void writeCsv(String fileName) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            out.println("benchmark,n,d,k,threads,engine,unit,mean,stddev," +
+                    "min,median");
+            for (String line: results) {
+                out.println(line);
+            }
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of integers.
+     * @param list  the list
+     * @return the integers
+     */
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] ints = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ints[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ints;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        boolean quick = false;
+        int warmup = 5;
+        int runs = 10;
+        String csv = null;
+        int[] threadCounts = null;
+        String[] engines = {"sequential", "pool", "forkjoin", "float",
+                "kdtree"};
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--quick":
+                    quick = true;
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    threadCounts = parseInts(args[++i]);
+                    break;
+                case "--engines":
+                    engines = args[++i].split(",");
+                    break;
+                case "--csv":
+                    csv = args[++i];
+                    break;
+                default:
+                    System.out.println(USAGE);
+                    return;
+            }
+        }
+        if (threadCounts == null) {
+            //powers of two up to the cores, and the cores themselves
+            int count = 32 - Integer.numberOfLeadingZeros(cores);
+            boolean power = Integer.bitCount(cores) == 1;
+            threadCounts = new int[power ? count : count + 1];
+            for (int i = 0; i < count; i++) {
+                threadCounts[i] = 1 << i;
+            }
+            threadCounts[threadCounts.length - 1] = cores;
+        }
+        int[] sizes = quick ? new int[] {10_000} :
+                new int[] {10_000, 100_000, 1_000_000};
+        int[] dimensions = quick ? new int[] {4} : new int[] {4, 32};
+        int[] clusters = quick ? new int[] {3} : new int[] {3, 16, 64};
+
+        KMeansBenchmark bench = new KMeansBenchmark(warmup, runs);
+        System.out.println("Warm-up " + warmup + ", runs " + runs + ", " +
+                cores + " cores, " + ITERATIONS + " iterations per run");
+        for (int d: dimensions) {
+            bench.report("distance", MICRO_ROWS, d, 0, 1, "-", "ns/op",
+                    bench.benchmarkDistance(d), 1.0);
+            for (int k: clusters) {
+                bench.report("average", MICRO_ROWS, d, k, 1, "-", "ns/row",
+                        bench.benchmarkAveraging(d, k), 1.0);
+            }
+        }
+        for (int n: sizes) {
+            for (int d: dimensions) {
+                for (int k: clusters) {
+                    Dataset data = blobs(n, d, k, n + 31L * d + k);
+                    for (String engine: engines) {
+                        for (int t: threadCounts) {
+                            if ((engine.equals("sequential") ||
+                                    engine.equals("kdtree")) && t > 1) {
+                                continue;
+                            }
+                            bench.report("lloyd", n, d, k, t, engine,
+                                    "ms/iter", bench.benchmarkEngine(data, k,
+                                            engine, t), 1e6);
+                        }
+                    }
+                }
+            }
+        }
+        if (csv != null) {
+            bench.writeCsv(csv);
+            System.out.println("Wrote " + csv);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line front end of {@link KMeans}. Reads a CSV or .kmb file,
+ * clusters it and prints the time, the iterations and the classes found in
+ * every cluster. The kmeans.kernel, kmeans.init, kmeans.engine and
+ * kmeans.pruning system properties still set the defaults of the options.
+ */
+public class KMeansCli {
+    private static final String DEFAULT_FILE = "src/iris-data.csv";
+    private static final String USAGE =
+            "Usage: KMeansCli [options] [file]\n" +
+            "  -k, --clusters N       number of clusters (3)\n" +
+            "  -t, --threads N        threads (one per core)\n" +
+            "  --tolerance X          centroid shift to stop at (" +
+            KMeans.DEFAULT_TOLERANCE + ")\n" +
+            "  --max-iterations N     iteration cap (" +
+            KMeans.DEFAULT_MAX_ITERATIONS + ")\n" +
+            "  --engine NAME          sequential, pool, forkjoin or kdtree\n" +
+            "  --kernel NAME          scalar, vector, blocked or auto\n" +
+            "  --init NAME            random, kmeans++, kmeans|| or auto\n" +
+            "  --pruning              triangle-inequality pruning\n" +
+            "  --precision NAME       double or float\n" +
+            "  --seed N               seed of the starting centroids\n" +
+            "  --metrics FILE         per-iteration metrics, .json or CSV\n" +
+            "  --model FILE           warm-start from a saved model\n" +
+            "  --save-model FILE      save the fitted model\n" +
+            "  --labels FILE          cluster of every row, .bin or CSV\n" +
+            "  --restarts N           keep the best of N concurrent fits\n" +
+            "  --sweep K,K,...        best fit of every number of clusters\n" +
+            "  -h, --help             print this message";
+
+    public static void main(String[] args) {
+        run(args, "forkjoin");
+    }
+
+    /**
+     * Settings of one command line, as parsed by {@link #parse}.
+     */
+    static final class Options {
+        KMeans.Builder builder; // settings of the run, for restarts
+        KMeans kMeans;  // the configured run
+        String file = DEFAULT_FILE; // input file
+        String metricsFile; // per-iteration metrics, null for none
+        final MetricsRecorder recorder = new MetricsRecorder();
+        String modelFile;   // model to warm-start from, null for none
+        KMeansModel model;  // the loaded model, null for none
+        String saveModelFile;   // file to save the model to, null for none
+        String labelsFile;  // file to write the assignment to, null for none
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        Long seed;  // seed of the restarts, null for random
+        int restarts = 1;   // fits per k
+        int[] sweep;    // numbers of clusters to sweep, null for one k
+    }
+
+    /**
+     * Parses the options shared by the mains. Prints the usage and exits
+     * with status 2 on a bad option.
+     * @param args  command line arguments
+     * @param defaultEngine engine used without --engine or kmeans.engine
+     * @return the options, or null if --help was printed
+     */
+    static Options parse(String[] args, String defaultEngine) {
+        KMeans.Builder builder = KMeans.builder()
+                .engine(System.getProperty("kmeans.engine", defaultEngine))
+                .kernel(System.getProperty("kmeans.kernel", "auto"))
+                .seeding(System.getProperty("kmeans.init", "auto"))
+                .pruning(Boolean.getBoolean("kmeans.pruning"));
+        Options options = new Options();
+        options.builder = builder;
+        int numCentroids = -1;  //-k, if given
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-k":
+                    case "--clusters":
+                        numCentroids = Integer.parseInt(value(args, ++i,
+                                arg));
+                        builder.numCentroids(numCentroids);
+                        break;
+                    case "-t":
+                    case "--threads":
+                        options.numThreads = Integer.parseInt(
+                                value(args, ++i, arg));
+                        builder.numThreads(options.numThreads);
+                        break;
+                    case "--tolerance":
+                        builder.tolerance(Double.parseDouble(
+                                value(args, ++i, arg)));
+                        break;
+                    case "--max-iterations":
+                        builder.maxIterations(Integer.parseInt(
+                                value(args, ++i, arg)));
+                        break;
+                    case "--engine":
+                        builder.engine(value(args, ++i, arg));
+                        break;
+                    case "--kernel":
+                        builder.kernel(value(args, ++i, arg));
+                        break;
+                    case "--init":
+                        builder.seeding(value(args, ++i, arg));
+                        break;
+                    case "--precision":
+                        builder.precision(value(args, ++i, arg));
+                        break;
+                    case "--pruning":
+                        builder.pruning(true);
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(value(args, ++i, arg));
+                        builder.seed(options.seed);
+                        break;
+                    case "--metrics":
+                        options.metricsFile = value(args, ++i, arg);
+                        builder.listener(options.recorder);
+                        break;
+                    case "--restarts":
+                        options.restarts = Integer.parseInt(
+                                value(args, ++i, arg));
+                        break;
+                    case "--sweep":
+                        options.sweep = Arrays.stream(value(args, ++i, arg)
+                                .split(",")).mapToInt(Integer::parseInt)
+                                .toArray();
+                        break;
+                    case "--model":
+                        options.modelFile = value(args, ++i, arg);
+                        break;
+                    case "--save-model":
+                        options.saveModelFile = value(args, ++i, arg);
+                        break;
+                    case "--labels":
+                        options.labelsFile = value(args, ++i, arg);
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.println(USAGE);
+                        return null;
+                    default:
+                        if (arg.startsWith("-")) {
+                            throw new IllegalArgumentException(
+                                    "Unknown option: " + arg);
+                        }
+                        options.file = arg;
+                }
+            }
+            if (options.modelFile != null) {
+                options.model = KMeansModel.load(options.modelFile);
+                if (numCentroids >= 0 &&
+                        numCentroids != options.model.getNumCentroids()) {
+                    throw new IllegalArgumentException(options.modelFile +
+                            " has " + options.model.getNumCentroids() +
+                            " clusters, not " + numCentroids);
+                }
+                builder.numCentroids(options.model.getNumCentroids());
+            }
+            options.kMeans = builder.build();
+            if ((options.restarts != 1 || options.sweep != null) &&
+                    (options.metricsFile != null ||
+                            options.modelFile != null)) {
+                throw new IllegalArgumentException("--metrics and --model " +
+                        "apply to a single fit, not to restarts");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            usageError(e.getMessage());
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+        return options;
+    }
+
+    /**
+     * Exits with a usage error unless the options only set what a main
+     * without a {@link KMeans} fit supports: the number of clusters and
+     * threads, the tolerance and iteration cap, the kernel, the seeding,
+     * the seed and the file.
+     * @param options   parsed options
+     * @param main  name of the main, for the error
+     */
+    static void requireBasicOptions(Options options, String main) {
+        if (options.restarts != 1 || options.sweep != null ||
+                options.metricsFile != null || options.modelFile != null ||
+                options.saveModelFile != null || options.labelsFile != null ||
+                options.kMeans.isPruning() || options.kMeans.isFloat()) {
+            usageError(main + " does not support --restarts, --sweep, " +
+                    "--metrics, --model, --save-model, --labels, --pruning " +
+                    "or float precision");
+        }
+    }
+
+    /**
+     * Prints an error and the usage, then exits with status 2.
+     * @param message   what was wrong
+     */
+    static void usageError(String message) {
+        System.err.println(message);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    /**
+     * Parses the options, runs k-means and prints the results. Exits with
+     * status 2 on a bad option.
+     * @param args  command line arguments
+     * @param defaultEngine engine used without --engine or kmeans.engine
+     */
+    static void run(String[] args, String defaultEngine) {
+        Options options = parse(args, defaultEngine);
+        if (options == null) {
+            return;
+        }
+        KMeans.Builder builder = options.builder;
+        KMeans kMeans = options.kMeans;
+        String file = options.file;
+        String metricsFile = options.metricsFile;
+        MetricsRecorder recorder = options.recorder;
+        String modelFile = options.modelFile;
+        String saveModelFile = options.saveModelFile;
+        String labelsFile = options.labelsFile;
+        KMeansModel model = options.model;
+        int numThreads = options.numThreads;
+        Long seed = options.seed;
+        int restarts = options.restarts;
+        int[] sweep = options.sweep;
+
+        Dataset data = Dataset.load(file);
+        if (model != null && model.getDimensions() != data.getDimensions()) {
+            usageError(modelFile + " has centroids of " +
+                    model.getDimensions() + " attributes, but " + file +
+                    " has rows of " + data.getDimensions());
+        }
+        if (kMeans.isFloat()) {
+            data = data.toFloat(); //let the doubles be collected
+        }
+        System.out.println("Kernel: " + kMeans.getKernelName() +
+                (kMeans.isPruning() ? ", pruning" : "") + ", seeding " +
+                kMeans.getSeedingName() + ", engine " +
+                kMeans.getEngineName() + ", " + kMeans.getNumThreads() +
+                " threads" + (model != null ? ", from " + modelFile : ""));
+
+        if (sweep != null) {
+            runSweep(data, new MultiStartKMeans(builder, restarts,
+                    numThreads, seed), sweep);
+            return;
+        }
+        MultiStartKMeans multiStart = restarts == 1 ? null :
+                new MultiStartKMeans(builder, restarts, numThreads, seed);
+
+        Long startTime = System.currentTimeMillis();
+        KMeansResult result = multiStart != null ?
+                multiStart.fit(data, kMeans.getNumCentroids()) :
+                model != null ? kMeans.fit(data, model.getCentroids()) :
+                kMeans.fit(data);
+        Long endTime = System.currentTimeMillis();
+        System.out.println("Time until convergence: " + (endTime-startTime)
+                + "ms");
+        if (multiStart != null) {
+            System.out.println("Best of " + restarts + " restarts (" +
+                    multiStart.getCancelledCount() + " cancelled), " +
+                    "inertia " + result.getInertia());
+        }
+        System.out.println("Num iterations: " + result.getIterations() +
+                (result.isConverged() ? "" : " (not converged)"));
+
+        printClusterStats(data, result.getAssignment(),
+                result.getNumCentroids());
+        if (metricsFile != null) {
+            try {
+                recorder.write(metricsFile);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (saveModelFile != null) {
+            try {
+                KMeansModel.of(data, result).save(saveModelFile);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (labelsFile != null) {
+            try {
+                result.writeAssignment(labelsFile);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Fits every number of clusters of a sweep and prints the inertia of
+     * the best restart of each.
+     * @param data  Dataset to cluster
+     * @param multiStart    runner of the restarts
+     * @param ks    numbers of clusters
+     */
+    private static void runSweep(Dataset data, MultiStartKMeans multiStart,
+                                 int[] ks) {
+        Long startTime = System.currentTimeMillis();
+        Map<Integer, KMeansResult> results = multiStart.sweep(data, ks);
+        Long endTime = System.currentTimeMillis();
+        System.out.println("Time until convergence: " + (endTime-startTime)
+                + "ms, " + multiStart.getCancelledCount() +
+                " restarts cancelled");
+        for (Map.Entry<Integer, KMeansResult> e: results.entrySet()) {
+            KMeansResult result = e.getValue();
+            System.out.println("k=" + e.getKey() + ": inertia " +
+                    result.getInertia() + ", " + result.getIterations() +
+                    " iterations" +
+                    (result.isConverged() ? "" : " (not converged)"));
+        }
+    }
+
+    /**
+     * Returns the value following an option.
+     * @param args  command line arguments
+     * @param i index of the value
+     * @param option    name of the option, for the error
+     * @return the value
+     * @throws IllegalArgumentException if the value is missing
+     */
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value of " + option);
+        }
+        return args[i];
+    }
+
+    /**
+     * Prints the count of each class per cluster.
+     * @param data  Dataset that was clustered
+     * @param assignment    cluster index of every row
+     * @param numCentroids  number of clusters
+     */
+    public static void printClusterStats(Dataset data, int[] assignment,
+                                         int numCentroids) {
+        List<String> labelNames = data.getLabelNames();
+        int[][] counts = KMeansResult.contingency(data, assignment,
+                numCentroids, Runtime.getRuntime().availableProcessors());
+        int unlabeled = labelNames.size();
+        for (int c = 0; c < numCentroids; c++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Cluster ").append(c+1).append(":");
+            for (int l = 0; l < labelNames.size(); l++) {
+                sb.append(l == 0 ? " " : ", ").append(counts[c][l])
+                        .append(" ").append(labelNames.get(l));
+            }
+            if (labelNames.isEmpty() || counts[c][unlabeled] > 0) {
+                sb.append(labelNames.isEmpty() ? " " : ", ")
+                        .append(counts[c][unlabeled]).append(" unlabeled");
+            }
+            System.out.println(sb);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * One k-means backend over a fixed {@link Dataset}: runs fused Lloyd
+ * iterations and the final assignment pass. Implementations differ in how
+ * the rows are spread over threads, from none for {@link SequentialKMeans}
+ * to a work-stealing pool for {@link ForkJoinKMeansEngine}.
+ */
+public interface KMeansEngine {
+    /**
+     * Runs one fused iteration of k-means: every row is assigned and
+     * accumulated in a single pass and the centroids are averaged.
+     * @param centroids row-major centroids of the current iteration
+     * @return row-major newly calculated centroids, in cluster order
+     */
+    double[] iterate(double[] centroids);
+
+    /**
+     * Assigns every row to its nearest centroid with one pass over the
+     * data. Meant to be called once after the final iteration.
+     * @param centroids row-major final centroids
+     * @return cluster index, starting at 0, of every row
+     */
+    int[] assign(double[] centroids);
+
+    /**
+     * Number of rows assigned to each cluster by the last iteration.
+     * @return array of sizes, in cluster order
+     */
+    int[] getClusterSizes();
+
+    /**
+     * Sum of squared distances of all rows to the centroids they were
+     * assigned to in the last iteration.
+     * @return the inertia
+     */
+    double getInertia();
+
+    /**
+     * Turns Hamerly triangle-inequality pruning of the iterations on or off.
+     * @param pruning   True to prune
+     */
+    void setPruning(boolean pruning);
+
+    /**
+     * Distances computed by the last pruned iteration.
+     * @return distance count, or -1 without pruning
+     */
+    long getDistanceCount();
+
+    /**
+     * Turns per-iteration metrics on or off. With metrics on the engine
+     * times its steps and keeps the cluster of every row to count changes;
+     * with metrics off it does neither.
+     * @param metrics   True to record metrics
+     */
+    void setMetrics(boolean metrics);
+
+    /**
+     * Time the last iteration took to assign and accumulate the rows.
+     * @return nanoseconds, or -1 without metrics
+     */
+    long getAssignNanos();
+
+    /**
+     * Time the last iteration took to average the new centroids.
+     * @return nanoseconds, or -1 without metrics
+     */
+    long getUpdateNanos();
+
+    /**
+     * Time every thread spent waiting for the others in the last iteration.
+     * @return nanoseconds per thread, or null without metrics
+     */
+    long[] getWaitNanos();
+
+    /**
+     * Rows whose cluster changed in the last iteration.
+     * @return row count, or -1 without metrics
+     */
+    int getChangedCount();
+
+    /**
+     * Number of threads the engine runs on.
+     * @return thread count
+     */
+    int getNumThreads();
+
+    /**
+     * Stops the engine's threads.
+     */
+    void shutdown();
+
+    /**
+     * Creates an engine by name.
+     * @param name  "sequential" for {@link SequentialKMeans}, "pool" for
+     *              {@link ParallelKMeansEngine}, "forkjoin" for
+     *              {@link ForkJoinKMeansEngine}, "kdtree" for
+     *              {@link KdTreeKMeansEngine}
+     * @param data  Dataset to cluster
+     * @param numCentroids  number of clusters
+     * @param numThreads    number of threads, ignored by "sequential" and
+     *                      "kdtree"
+     * @param kernel    nearest-centroid search
+     * @return a KMeansEngine
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static KMeansEngine forName(String name, Dataset data, int numCentroids,
+                                int numThreads, AssignmentKernel kernel) {
+        switch (name) {
+            case "sequential":
+                return new SequentialKMeans(data, numCentroids, kernel);
+            case "pool":
+                return new ParallelKMeansEngine(data, numCentroids,
+                        numThreads, kernel);
+            case "forkjoin":
+                return new ForkJoinKMeansEngine(data, numCentroids,
+                        numThreads, kernel);
+            case "kdtree":
+                return new KdTreeKMeansEngine(data, numCentroids, kernel);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+/**
+ * Receives the metrics of every Lloyd iteration of a {@link KMeans} run.
+ * Called on the thread that runs the fit, between iterations, so a slow
+ * listener slows the run down but never races with the engine.
+ */
+public interface KMeansListener {
+    /**
+     * Called after every iteration.
+     * @param metrics   timings, changes and quality of the iteration
+     */
+    void onIteration(IterationMetrics metrics);
+}
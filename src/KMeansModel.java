@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fitted k-means model that can be saved, loaded and updated without the
+ * rows it was fitted on. Besides the centroids it keeps the row count and
+ * the attribute sums of every cluster, so appended rows can be added to
+ * and removed rows taken out of their nearest cluster in time proportional
+ * to the delta, after which the centroids are the new means. A later run
+ * warm-starts from {@link #getCentroids()} and converges in a few
+ * iterations instead of seeding from scratch. The file holds, little-endian,
+ * <pre>
+ *   int magic "KMM1", int clusters, int dimensions,
+ *   long count per cluster, double sums and double centroids, row-major
+ * </pre>
+ */
+public class KMeansModel {
+    private static final int MAGIC = 0x314d4d4b;    // "KMM1" little-endian
+    private static final int PREFIX_BYTES = 12; // fixed part of the header
+
+    private final int numCentroids; // number of clusters
+    private final int dimensions;   // attributes per centroid
+    private final long[] counts;    // rows per cluster
+    private final double[] sums;    // row-major attribute sums per cluster
+    private final double[] centroids;   // row-major centroids
+
+    /**
+     * Constructor
+     * @param numCentroids  number of clusters
+     * @param dimensions    attributes per centroid
+     * @param counts    rows per cluster
+     * @param sums  row-major attribute sums per cluster
+     * @param centroids row-major centroids
+     */
+    private KMeansModel(int numCentroids, int dimensions, long[] counts,
+                        double[] sums, double[] centroids) {
+        this.numCentroids = numCentroids;
+        this.dimensions = dimensions;
+        this.counts = counts;
+        this.sums = sums;
+        this.centroids = centroids;
+    }
+
+    /**
+     * Builds the model of a finished run from the rows it clustered. The
+     * centroids are the means of the sums, so the first update only moves
+     * the clusters it changes; empty clusters keep the run's centroid.
+     * @param data  Dataset the run clustered
+     * @param result    result of the run
+     * @return a KMeansModel with the means of the run's clusters
+     */
+    public static KMeansModel of(Dataset data, KMeansResult result) {
+        int k = result.getNumCentroids();
+        int dims = result.getDimensions();
+        long[] counts = new long[k];
+        double[] sums = new double[k * dims];
+        int[] assignment = result.getAssignment();
+        for (int row = 0; row < assignment.length; row++) {
+            int offset = assignment[row] * dims;
+            for (int d = 0; d < dims; d++) {
+                sums[offset + d] += data.get(row, d);
+            }
+            counts[assignment[row]]++;
+        }
+        double[] centroids = result.getCentroids().clone();
+        for (int c = 0; c < k; c++) {
+            if (counts[c] == 0) {
+                continue;
+            }
+            for (int j = c * dims; j < (c + 1) * dims; j++) {
+                centroids[j] = sums[j] / counts[c];
+            }
+        }
+        return new KMeansModel(k, dims, counts, sums, centroids);
+    }
+
+    /**
+     * Adds appended rows to the sums of their nearest clusters and moves
+     * the centroids to the new means.
+     * @param delta rows to add
+     * @return number of rows added to every cluster
+     * @throws IllegalArgumentException if the dimensions differ
+     */
+    public long[] add(Dataset delta) {
+        return apply(delta, 1);
+    }
+
+    /**
+     * Takes removed rows out of the sums of their nearest clusters and
+     * moves the centroids to the new means. A row is taken from the
+     * cluster it is nearest to now, which is the cluster it was in if the
+     * model has converged since the row was added.
+     * @param delta rows to remove
+     * @return number of rows removed from every cluster
+     * @throws IllegalArgumentException if the dimensions differ
+     */
+    public long[] remove(Dataset delta) {
+        return apply(delta, -1);
+    }
+
+    /**
+     * Adds or subtracts rows from their nearest clusters, all assigned to
+     * the centroids from before the delta, then averages the centroids.
+     * Clusters left empty keep their centroid. The per-cluster deltas are
+     * summed first and only applied if no count would drop below 0, so a
+     * rejected removal leaves the model unchanged.
+     * @param delta rows to add or remove
+     * @param sign  1 to add, -1 to remove
+     * @return number of rows moved per cluster
+     * @throws IllegalStateException if more rows would be removed from a
+     *                               cluster than it holds
+     */
+    private long[] apply(Dataset delta, int sign) {
+        if (delta.getDimensions() != dimensions) {
+            throw new IllegalArgumentException("Expected rows of " +
+                    dimensions + " attributes, not " +
+                    delta.getDimensions());
+        }
+        long[] moved = new long[numCentroids];
+        double[] deltaSums = new double[sums.length];
+        double[] row = new double[dimensions];
+        for (int r = 0; r < delta.size(); r++) {
+            for (int d = 0; d < dimensions; d++) {
+                row[d] = delta.get(r, d);
+            }
+            int cluster = DistanceKernel.nearest(row, 0, centroids,
+                    numCentroids, dimensions);
+            int offset = cluster * dimensions;
+            for (int d = 0; d < dimensions; d++) {
+                deltaSums[offset + d] += row[d];
+            }
+            moved[cluster]++;
+        }
+        for (int c = 0; c < numCentroids; c++) {
+            if (counts[c] + sign * moved[c] < 0) {
+                throw new IllegalStateException("Removed more rows than " +
+                        "cluster " + c + " holds");
+            }
+        }
+        for (int c = 0; c < numCentroids; c++) {
+            counts[c] += sign * moved[c];
+            for (int j = c * dimensions; j < (c + 1) * dimensions; j++) {
+                sums[j] += sign * deltaSums[j];
+                if (counts[c] > 0) {
+                    centroids[j] = sums[j] / counts[c];
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Writes the model to a file.
+     * @param fileName  String for the file name
+     * @throws IOException if the file cannot be written
+     */
+    public void save(String fileName) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_BYTES +
+                8 * numCentroids + 16 * sums.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(numCentroids).putInt(dimensions);
+        buffer.asLongBuffer().put(counts);
+        buffer.position(buffer.position() + 8 * numCentroids);
+        buffer.asDoubleBuffer().put(sums).put(centroids);
+        buffer.rewind();
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Loads a model written by {@link #save(String)}.
+     * @param fileName  String for the file name
+     * @return a KMeansModel
+     * @throws IOException if the file cannot be read or is not a model
+     */
+    public static KMeansModel load(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ)) {
+            ByteBuffer prefix = read(channel, PREFIX_BYTES, fileName);
+            int k = prefix.getInt(4);
+            int dims = prefix.getInt(8);
+            if (prefix.getInt(0) != MAGIC || k < 1 || dims < 1 ||
+                    channel.size() != PREFIX_BYTES + 8L * k +
+                            16L * k * dims) {
+                throw new IOException(fileName + " is not a k-means model");
+            }
+            ByteBuffer body = read(channel, 8 * k + 16 * k * dims, fileName);
+            long[] counts = new long[k];
+            double[] sums = new double[k * dims];
+            double[] centroids = new double[k * dims];
+            body.asLongBuffer().get(counts);
+            body.position(8 * k);
+            body.asDoubleBuffer().get(sums).get(centroids);
+            return new KMeansModel(k, dims, counts, sums, centroids);
+        }
+    }
+
+    /**
+     * Reads the next bytes of a channel.
+     * @param channel   open file
+     * @param bytes number of bytes
+     * @param fileName  String for the file name, for the error
+     * @return little-endian buffer of the bytes
+     * @throws IOException if the file ends first
+     */
+    private static ByteBuffer read(FileChannel channel, int bytes,
+                                   String fileName) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException(fileName + " is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Current centroids.
+     * @return row-major copy of numCentroids*dimensions values
+     */
+    public double[] getCentroids() {
+        return centroids.clone();
+    }
+
+    /**
+     * Number of rows in every cluster.
+     * @return copy of the counts, in cluster order
+     */
+    public long[] getCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * Number of clusters.
+     * @return k
+     */
+    public int getNumCentroids() {
+        return numCentroids;
+    }
+
+    /**
+     * Number of attributes per centroid.
+     * @return dimensions
+     */
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 ||
+                !args[1].equals("add") && !args[1].equals("remove")) {
+            System.out.println("Usage: KMeansModel model.kmm add|remove " +
+                    "delta-file [out.kmm]");
+            return;
+        }
+        try {
+            KMeansModel model = load(args[0]);
+            Dataset delta = Dataset.load(args[2]);
+            long[] moved = args[1].equals("add") ? model.add(delta) :
+                    model.remove(delta);
+            for (int c = 0; c < model.numCentroids; c++) {
+                System.out.println("Cluster " + (c+1) + ": " +
+                        (args[1].equals("add") ? "+" : "-") + moved[c] +
+                        ", " + model.counts[c] + " rows");
+            }
+            model.save(args.length > 3 ? args[3] : args[0]);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
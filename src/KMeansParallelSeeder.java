@@ -0,0 +1,212 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Scalable k-means++ seeding, k-means|| (Bahmani et al., 2012). Instead of
+ * k sequential passes it runs a few rounds that each sample about 2k rows
+ * at once, every row with probability proportional to its squared distance
+ * to the candidates so far. Each candidate is then weighted by the number
+ * of rows closest to it, found with the fastest {@link AssignmentKernel},
+ * and k-means++ picks the k seeds among the weighted candidates. The
+ * distance, sampling and weighting passes are split over contiguous row
+ * partitions run on the common fork/join pool; every partition samples
+ * with its own seeded Random, so the seeds only depend on the Random
+ * passed in, not on which thread ran a partition.
+ */
+final class KMeansParallelSeeder implements CentroidSeeder {
+    private static final int ROUNDS = 5;    // sampling rounds
+    private static final double OVERSAMPLING = 2.0; // sampled rows per k
+
+    private final int numThreads;   // partitions of every pass
+
+    /**
+     * Constructor
+     * @param numThreads    partitions of every pass
+     */
+    KMeansParallelSeeder(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    @Override
+    public double[] seed(Dataset data, int numCentroids, Random random) {
+        int numRows = data.size();
+        int dims = data.getDimensions();
+        //float rows are read in place, never widened as a whole
+        float[] floatValues = data.isFloat() ? data.getFloatValues() : null;
+        double[] values = floatValues == null ? data.getValues() : null;
+        int numParts = Math.max(1, Math.min(numThreads, numRows));
+        int[] bounds = new int[numParts + 1];
+        for (int p = 0; p <= numParts; p++) {
+            bounds[p] = (int) ((long) numRows * p / numParts);
+        }
+
+        //first candidate is a random row
+        double[] candidates = new double[4 * numCentroids * dims];
+        int numCandidates = 1;
+        copyRow(data, random.nextInt(numRows), candidates, 0);
+        double[] minDistance = new double[numRows];
+        Arrays.fill(minDistance, Double.MAX_VALUE);
+        double[] partCost = new double[numParts];
+        double cost = updateDistances(values, floatValues, dims, candidates,
+                0, 1, minDistance, bounds, partCost);
+
+        double expected = OVERSAMPLING * numCentroids;
+        for (int round = 0; round < ROUNDS && cost > 0.0; round++) {
+            final double scale = expected / cost;
+            int[][] sampled = new int[numParts][];
+            long[] seeds = new long[numParts];
+            for (int p = 0; p < numParts; p++) {
+                seeds[p] = random.nextLong();
+            }
+            runParts(numParts, p -> {
+                Random partRandom = new Random(seeds[p]);
+                int[] rows = new int[16];
+                int count = 0;
+                for (int row = bounds[p]; row < bounds[p+1]; row++) {
+                    if (partRandom.nextDouble() < scale * minDistance[row]) {
+                        if (count == rows.length) {
+                            rows = Arrays.copyOf(rows, count * 2);
+                        }
+                        rows[count++] = row;
+                    }
+                }
+                sampled[p] = Arrays.copyOf(rows, count);
+            });
+
+            int first = numCandidates;
+            for (int[] rows: sampled) {
+                for (int row: rows) {
+                    if ((numCandidates + 1) * dims > candidates.length) {
+                        candidates = Arrays.copyOf(candidates,
+                                candidates.length * 2);
+                    }
+                    copyRow(data, row, candidates, numCandidates * dims);
+                    numCandidates++;
+                }
+            }
+            cost = updateDistances(values, floatValues, dims, candidates,
+                    first, numCandidates, minDistance, bounds, partCost);
+        }
+        if (numCandidates < numCentroids) {
+            return floatValues != null ?
+                    KMeansPlusPlusSeeder.choose(floatValues, numRows, dims,
+                            numCentroids, random) :
+                    KMeansPlusPlusSeeder.choose(values, null, numRows, dims,
+                            numCentroids, random);
+        }
+
+        //weight every candidate by the rows closest to it
+        final double[] finalCandidates = candidates;
+        final int finalCount = numCandidates;
+        AssignmentKernel kernel = AssignmentKernel.best(finalCount);
+        FloatAssignmentKernel floatKernel = FloatAssignmentKernel.best();
+        float[] floatCandidates = null;
+        if (floatValues != null) {
+            //candidates are float rows, so narrowing them back is exact
+            floatCandidates = new float[finalCount * dims];
+            for (int j = 0; j < floatCandidates.length; j++) {
+                floatCandidates[j] = (float) finalCandidates[j];
+            }
+        }
+        final float[] finalFloatCandidates = floatCandidates;
+        int[] nearest = new int[numRows];
+        int[][] partCounts = new int[numParts][finalCount];
+        runParts(numParts, p -> {
+            if (floatValues != null) {
+                floatKernel.nearestBlock(floatValues, bounds[p],
+                        bounds[p+1], finalFloatCandidates, finalCount, dims,
+                        nearest, bounds[p]);
+            }
+            else {
+                kernel.nearestBlock(values, bounds[p], bounds[p+1],
+                        finalCandidates, finalCount, dims, nearest,
+                        bounds[p]);
+            }
+            for (int row = bounds[p]; row < bounds[p+1]; row++) {
+                partCounts[p][nearest[row]]++;
+            }
+        });
+        double[] weights = new double[numCandidates];
+        for (int[] counts: partCounts) {
+            for (int c = 0; c < numCandidates; c++) {
+                weights[c] += counts[c];
+            }
+        }
+        return KMeansPlusPlusSeeder.choose(candidates, weights, numCandidates,
+                dims, numCentroids, random);
+    }
+
+    /**
+     * Lowers every row's squared distance to the nearest candidate with the
+     * candidates [from, to), one partition per thread.
+     * @param values    row-major rows, or null for float rows
+     * @param floatValues   row-major float rows, or null for double rows
+     * @param dims  attributes per row
+     * @param candidates    row-major candidates
+     * @param from  first new candidate (inclusive)
+     * @param to    last new candidate (exclusive)
+     * @param minDistance   squared distance of every row, updated in place
+     * @param bounds    first row of every partition, and the row count
+     * @param partCost  array to write every partition's cost to
+     * @return sum of the squared distances of all rows
+     */
+    private double updateDistances(double[] values, float[] floatValues,
+                                   int dims, double[] candidates, int from,
+                                   int to, double[] minDistance,
+                                   int[] bounds, double[] partCost) {
+        int numParts = partCost.length;
+        runParts(numParts, p -> {
+            double sum = 0.0;
+            for (int row = bounds[p]; row < bounds[p+1]; row++) {
+                double d = minDistance[row];
+                for (int c = from; c < to; c++) {
+                    d = Math.min(d, floatValues != null ?
+                            DistanceKernel.squaredDistance(floatValues,
+                                    row * dims, candidates, c * dims, dims) :
+                            DistanceKernel.squaredDistance(values,
+                                    row * dims, candidates, c * dims, dims));
+                }
+                minDistance[row] = d;
+                sum += d;
+            }
+            partCost[p] = sum;
+        });
+        double cost = 0.0;
+        for (double c: partCost) {
+            cost += c;
+        }
+        return cost;
+    }
+
+    /**
+     * Copies one row into a candidate array, widening float rows.
+     * @param data  Dataset holding the row
+     * @param row   row index
+     * @param to    array to copy to
+     * @param offset    index in to of the row's first attribute
+     */
+    private static void copyRow(Dataset data, int row, double[] to,
+                                int offset) {
+        for (int d = 0; d < data.getDimensions(); d++) {
+            to[offset + d] = data.get(row, d);
+        }
+    }
+
+    /**
+     * Runs a task for every partition on the common fork/join pool and
+     * returns once all of them have finished. An exception thrown by a
+     * task is rethrown to the caller.
+     * @param numParts  number of partitions
+     * @param task  work for one partition, given its index
+     */
+    private static void runParts(int numParts, IntConsumer task) {
+        IntStream.range(0, numParts).parallel().forEach(task);
+    }
+
+    @Override
+    public String getName() {
+        return "kmeans||";
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * k-means++ seeding (Arthur and Vassilvitskii, 2007). The first centroid is
+ * a random row; every next one is a row picked with probability
+ * proportional to its squared distance to the nearest centroid picked so
+ * far, which spreads the seeds over the data. Needs k passes over the data.
+ */
+final class KMeansPlusPlusSeeder implements CentroidSeeder {
+    @Override
+    public double[] seed(Dataset data, int numCentroids, Random random) {
+        if (data.isFloat()) {
+            return choose(data.getFloatValues(), data.size(),
+                    data.getDimensions(), numCentroids, random);
+        }
+        return choose(data.getValues(), null, data.size(),
+                data.getDimensions(), numCentroids, random);
+    }
+
+    /**
+     * k-means++ over weighted points: a point is picked with probability
+     * proportional to its weight times its squared distance.
+     * @param points    row-major points
+     * @param weights   weight of every point, or null for all 1
+     * @param numPoints number of points
+     * @param dims  attributes per point
+     * @param numCentroids  number of centroids to pick
+     * @param random    source of randomness
+     * @return row-major array of numCentroids*dims values
+     */
+    static double[] choose(double[] points, double[] weights, int numPoints,
+                           int dims, int numCentroids, Random random) {
+        double[] centroids = new double[numCentroids * dims];
+        double[] minDistance = new double[numPoints];
+        Arrays.fill(minDistance, 1.0);  //first pick only uses the weights
+        for (int c = 0; c < numCentroids; c++) {
+            int picked = pick(minDistance, weights, numPoints, random);
+            System.arraycopy(points, picked * dims, centroids, c * dims,
+                    dims);
+            for (int i = 0; i < numPoints; i++) {
+                double d = DistanceKernel.squaredDistance(points, i * dims,
+                        centroids, c * dims, dims);
+                if (c == 0 || d < minDistance[i]) {
+                    minDistance[i] = d;
+                }
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * k-means++ over unweighted float points, without widening them: the
+     * picked rows are widened into the centroids and the distances are
+     * computed in double, so it picks the same rows as the double version.
+     * @param points    row-major points
+     * @param numPoints number of points
+     * @param dims  attributes per point
+     * @param numCentroids  number of centroids to pick
+     * @param random    source of randomness
+     * @return row-major array of numCentroids*dims values
+     */
+    static double[] choose(float[] points, int numPoints, int dims,
+                           int numCentroids, Random random) {
+        double[] centroids = new double[numCentroids * dims];
+        double[] minDistance = new double[numPoints];
+        Arrays.fill(minDistance, 1.0);  //first pick is uniform
+        for (int c = 0; c < numCentroids; c++) {
+            int picked = pick(minDistance, null, numPoints, random);
+            for (int j = 0; j < dims; j++) {
+                centroids[c * dims + j] = points[picked * dims + j];
+            }
+            for (int i = 0; i < numPoints; i++) {
+                double d = DistanceKernel.squaredDistance(points, i * dims,
+                        centroids, c * dims, dims);
+                if (c == 0 || d < minDistance[i]) {
+                    minDistance[i] = d;
+                }
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Picks a point with probability proportional to weight times distance,
+     * or uniformly if every product is 0.
+     * @param distance  squared distance of every point
+     * @param weights   weight of every point, or null for all 1
+     * @param numPoints number of points
+     * @param random    source of randomness
+     * @return index of the picked point
+     */
+    private static int pick(double[] distance, double[] weights,
+                            int numPoints, Random random) {
+        double total = 0.0;
+        for (int i = 0; i < numPoints; i++) {
+            total += weights == null ? distance[i] : weights[i] * distance[i];
+        }
+        if (total <= 0.0) {
+            return random.nextInt(numPoints);
+        }
+        double target = random.nextDouble() * total;
+        double sum = 0.0;
+        int last = 0;
+        for (int i = 0; i < numPoints; i++) {
+            double p = weights == null ? distance[i] : weights[i] * distance[i];
+            if (p > 0.0) {
+                sum += p;
+                last = i;
+                if (sum > target) {
+                    return i;
+                }
+            }
+        }
+        return last;   //rounding left target just above the sum
+    }
+
+    @Override
+    public String getName() {
+        return "kmeans++";
+    }
+}
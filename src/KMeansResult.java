@@ -0,0 +1,220 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Outcome of one {@link KMeans} run: the final centroids, the cluster of
+ * every row, and how the run ended. The assignment is a plain int array
+ * indexed by row; it can be written out as CSV or as binary, and crossed
+ * with the label ids of the dataset in one parallel pass.
+ */
+public class KMeansResult {
+    private static final int WRITE_BUFFER = 1 << 20;    // bytes per write
+    private final double[] centroids;   // row-major final centroids
+    private final int[] assignment; // cluster index of every row
+    private final int[] clusterSizes;   // rows per cluster
+    private final int numCentroids; // number of clusters
+    private final int dimensions;   // attributes per centroid
+    private final int iterations;   // Lloyd iterations run
+    private final boolean converged;    // false if stopped by the cap
+    private final double inertia;   // inertia of the last iteration
+
+    /**
+     * Constructor. Counts the cluster sizes from the assignment.
+     * @param centroids row-major final centroids
+     * @param assignment    cluster index of every row
+     * @param numCentroids  number of clusters
+     * @param dimensions    attributes per centroid
+     * @param iterations    Lloyd iterations run
+     * @param converged False if the iteration cap stopped the run
+     * @param inertia   inertia of the last iteration
+     */
+    KMeansResult(double[] centroids, int[] assignment, int numCentroids,
+                 int dimensions, int iterations, boolean converged,
+                 double inertia) {
+        this.centroids = centroids;
+        this.assignment = assignment;
+        this.numCentroids = numCentroids;
+        this.dimensions = dimensions;
+        this.iterations = iterations;
+        this.converged = converged;
+        this.inertia = inertia;
+        this.clusterSizes = new int[numCentroids];
+        for (int cluster: assignment) {
+            clusterSizes[cluster]++;
+        }
+    }
+
+    /**
+     * Final centroids.
+     * @return row-major array of numCentroids*dimensions values
+     */
+    public double[] getCentroids() {
+        return centroids;
+    }
+
+    /**
+     * Cluster of every row, assigned to the final centroids.
+     * @return cluster index, starting at 0, of every row
+     */
+    public int[] getAssignment() {
+        return assignment;
+    }
+
+    /**
+     * Number of rows in every cluster of the assignment.
+     * @return array of sizes, in cluster order
+     */
+    public int[] getClusterSizes() {
+        return clusterSizes;
+    }
+
+    /**
+     * Number of clusters.
+     * @return k
+     */
+    public int getNumCentroids() {
+        return numCentroids;
+    }
+
+    /**
+     * Attributes per centroid.
+     * @return dimensions
+     */
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Number of Lloyd iterations run.
+     * @return iteration count
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Whether the centroids moved less than the tolerance before the
+     * iteration cap was reached.
+     * @return True if converged
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * Sum of squared distances of the rows to their centroids in the last
+     * iteration.
+     * @return the inertia
+     */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * Writes the cluster of every row as little-endian ints if the file
+     * name ends in .bin, the format of {@link OutOfCoreKMeans}, or as CSV
+     * with a "cluster" header and one line per row otherwise.
+     * @param fileName  file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeAssignment(String fileName) throws IOException {
+        boolean binary = fileName.endsWith(".bin");
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (!binary) {
+                buffer.put("cluster\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            byte[] digits = new byte[11];
+            for (int cluster: assignment) {
+                if (buffer.remaining() < digits.length + 1) {
+                    flush(channel, buffer);
+                }
+                if (binary) {
+                    buffer.putInt(cluster);
+                    continue;
+                }
+                int i = digits.length;
+                int value = cluster;
+                do {
+                    digits[--i] = (byte) ('0' + value % 10);
+                    value /= 10;
+                } while (value > 0);
+                buffer.put(digits, i, digits.length - i).put((byte) '\n');
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * Writes out and empties a buffer.
+     * @param channel   file to write to
+     * @param buffer    buffer in write mode
+     * @throws IOException if the file cannot be written
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Counts the rows of every label in every cluster of this result.
+     * @param data  Dataset that was clustered
+     * @return see {@link #contingency(Dataset, int[], int, int)}
+     */
+    public int[][] contingency(Dataset data) {
+        return contingency(data, assignment, numCentroids,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Counts the rows of every label in every cluster from the label id
+     * column, in one pass split into partitions that each fill their own
+     * table on the common fork/join pool; the tables are added up once
+     * every partition has finished.
+     * @param data  Dataset that was clustered
+     * @param assignment    cluster index of every row
+     * @param numCentroids  number of clusters
+     * @param numThreads    most partitions of the pass
+     * @return count per cluster and label id, with the unlabeled rows of a
+     *         cluster in one more column after the labels
+     */
+    public static int[][] contingency(Dataset data, int[] assignment,
+                                      int numCentroids, int numThreads) {
+        int[] labels = data.getLabels();
+        int columns = data.getLabelNames().size() + 1;
+        int numParts = Math.max(1, Math.min(numThreads,
+                assignment.length / 65536));
+        int[][] tables = new int[numParts][numCentroids * columns];
+        IntStream.range(0, numParts).parallel().forEach(p -> {
+            int[] table = tables[p];
+            int from = (int) ((long) assignment.length * p / numParts);
+            int to = (int) ((long) assignment.length * (p + 1) / numParts);
+            for (int row = from; row < to; row++) {
+                int label = labels[row] < 0 ? columns - 1 : labels[row];
+                table[assignment[row] * columns + label]++;
+            }
+        });
+        int[][] counts = new int[numCentroids][columns];
+        for (int[] table: tables) {
+            for (int c = 0; c < numCentroids; c++) {
+                for (int l = 0; l < columns; l++) {
+                    counts[c][l] += table[c * columns + l];
+                }
+            }
+        }
+        return counts;
+    }
+}
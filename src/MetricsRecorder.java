@@ -0,0 +1,128 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Listener that keeps the metrics of every iteration and exports them as
+ * CSV, one row per iteration with one wait column per thread, or as a JSON
+ * array of iteration objects.
+ */
+public class MetricsRecorder implements KMeansListener {
+    private final List<IterationMetrics> iterations = new ArrayList<>();
+
+    @Override
+    public void onIteration(IterationMetrics metrics) {
+        iterations.add(metrics);
+    }
+
+    /**
+     * Metrics recorded so far, in iteration order.
+     * @return unmodifiable list of metrics
+     */
+    public List<IterationMetrics> getIterations() {
+        return Collections.unmodifiableList(iterations);
+    }
+
+    /**
+     * Forgets the recorded metrics, to reuse the recorder for another run.
+     */
+    public void clear() {
+        iterations.clear();
+    }
+
+    /**
+     * Writes the metrics as JSON if the file name ends in .json, as CSV
+     * otherwise.
+     * @param fileName  file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(String fileName) throws IOException {
+        if (fileName.endsWith(".json")) {
+            writeJson(fileName);
+        }
+        else {
+            writeCsv(fileName);
+        }
+    }
+
+    /**
+     * Writes the metrics as CSV with a header line.
+     * @param fileName  file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeCsv(String fileName) throws IOException {
+        int numThreads = 0;
+        for (IterationMetrics m: iterations) {
+            numThreads = Math.max(numThreads, m.getWaitNanos().length);
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            StringBuilder sb = new StringBuilder("iteration,assign_ns," +
+                    "update_ns,changed,shift,inertia,distances");
+            for (int t = 0; t < numThreads; t++) {
+                sb.append(",wait_ns_").append(t);
+            }
+            out.println(sb);
+            for (IterationMetrics m: iterations) {
+                sb.setLength(0);
+                sb.append(m.getIteration()).append(',')
+                        .append(m.getAssignNanos()).append(',')
+                        .append(m.getUpdateNanos()).append(',')
+                        .append(m.getChanged()).append(',')
+                        .append(m.getShift()).append(',')
+                        .append(m.getInertia()).append(',')
+                        .append(m.getDistanceCount());
+                long[] wait = m.getWaitNanos();
+                for (int t = 0; t < numThreads; t++) {
+                    sb.append(',');
+                    if (t < wait.length) {
+                        sb.append(wait[t]);
+                    }
+                }
+                out.println(sb);
+            }
+        }
+    }
+
+    /**
+     * Writes the metrics as a JSON array.
+     * @param fileName  file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(String fileName) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            out.println("[");
+            for (int i = 0; i < iterations.size(); i++) {
+                IterationMetrics m = iterations.get(i);
+                StringBuilder sb = new StringBuilder("  {\"iteration\": ")
+                        .append(m.getIteration())
+                        .append(", \"assignNanos\": ")
+                        .append(m.getAssignNanos())
+                        .append(", \"updateNanos\": ")
+                        .append(m.getUpdateNanos())
+                        .append(", \"waitNanos\": ")
+                        .append(Arrays.toString(m.getWaitNanos()))
+                        .append(", \"changed\": ").append(m.getChanged())
+                        .append(", \"shift\": ").append(json(m.getShift()))
+                        .append(", \"inertia\": ")
+                        .append(json(m.getInertia()))
+                        .append(", \"distances\": ")
+                        .append(m.getDistanceCount()).append('}');
+                if (i < iterations.size() - 1) {
+                    sb.append(',');
+                }
+                out.println(sb);
+            }
+            out.println("]");
+        }
+    }
+
+    /**
+     * Formats a double as a JSON number; JSON has no NaN or infinity.
+     * @param value the value
+     * @return the number, or null if it is not finite
+     */
+    private static String json(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "null";
+    }
+}
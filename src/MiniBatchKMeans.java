@@ -0,0 +1,202 @@
+import java.util.*;
+
+/**
+ * Mini-batch k-means (Sculley, 2010). Instead of full passes over the data,
+ * every step samples a small batch of rows, assigns it with the pooled
+ * {@link ParallelKMeansEngine} and moves each centroid towards the mean of
+ * its batch rows with a per-centroid learning rate of
+ * (rows in this batch) / (rows seen so far). The batch lives in one reused
+ * buffer that the engine's workers were partitioned over, so the distance,
+ * accumulation and averaging code is the same as for full k-means.
+ *
+ * Fitting stops after a maximum number of batches, or when an exponentially
+ * weighted average of the batch inertia has not improved for a number of
+ * batches in a row.
+ */
+public class MiniBatchKMeans {
+    private final Dataset data; // full dataset to sample from
+    private final int numCentroids; // number of clusters
+    private final int batchSize;    // rows per batch
+    private final int numThreads;   // worker threads
+    private final AssignmentKernel kernel;  // nearest-centroid search
+    private final Random random;    // batch sampling
+    private int maxBatches = 1000;  // hard cap on batches
+    private int patience = 10;  // batches without improvement before stopping
+    private int batches;    // batches run by the last fit
+
+    /**
+     * Constructor
+     * @param data  Dataset to cluster
+     * @param numCentroids  number of clusters
+     * @param batchSize rows per batch
+     * @param numThreads    worker threads for the batch assignment
+     * @param kernel    nearest-centroid search
+     * @param random    source of randomness for sampling
+     */
+    public MiniBatchKMeans(Dataset data, int numCentroids, int batchSize,
+                           int numThreads, AssignmentKernel kernel,
+                           Random random) {
+        this.data = data;
+        this.numCentroids = numCentroids;
+        this.batchSize = Math.min(batchSize, data.size());
+        this.numThreads = numThreads;
+        this.kernel = kernel;
+        this.random = random;
+    }
+
+    /**
+     * Sets the maximum number of batches of a fit.
+     * @param maxBatches    batch cap
+     */
+    public void setMaxBatches(int maxBatches) {
+        this.maxBatches = maxBatches;
+    }
+
+    /**
+     * Sets how many batches in a row may fail to improve the smoothed
+     * inertia before the fit stops. 0 disables the plateau check.
+     * @param patience  number of batches
+     */
+    public void setPatience(int patience) {
+        this.patience = patience;
+    }
+
+    /**
+     * Runs mini-batch k-means from the given centroids.
+     * @param initialCentroids  row-major starting centroids, not modified
+     * @return row-major fitted centroids
+     */
+    public double[] fit(double[] initialCentroids) {
+        int dims = data.getDimensions();
+        double[] values = data.getValues();
+        double[] centroids = initialCentroids.clone();
+        long[] seen = new long[numCentroids];
+
+        //one reusable batch buffer that the workers are partitioned over
+        double[] batchValues = new double[batchSize * dims];
+        Dataset batch = new Dataset(batchValues, new int[batchSize],
+                data.getLabelNames(), data.getSchema());
+        ParallelKMeansEngine engine = new ParallelKMeansEngine(batch,
+                numCentroids, numThreads, kernel);
+
+        double alpha = Math.min(1.0, 2.0 * batchSize / (data.size() + 1));
+        double smoothed = Double.NaN;
+        double bestSmoothed = Double.MAX_VALUE;
+        int noImprovement = 0;
+        batches = 0;
+        try {
+            while (batches < maxBatches) {
+                batches++;
+                for (int i = 0; i < batchSize; i++) {
+                    int row = random.nextInt(data.size());
+                    System.arraycopy(values, row * dims, batchValues,
+                            i * dims, dims);
+                }
+
+                //batch means and sizes come from the same fused pass
+                double[] means = engine.iterate(centroids);
+                moveCentroids(centroids, means, engine.getClusterSizes(),
+                        seen, dims);
+
+                //stop once the smoothed batch inertia plateaus
+                double inertia = engine.getInertia() / batchSize;
+                smoothed = Double.isNaN(smoothed) ? inertia :
+                        (1.0 - alpha) * smoothed + alpha * inertia;
+                if (smoothed < bestSmoothed) {
+                    bestSmoothed = smoothed;
+                    noImprovement = 0;
+                }
+                else if (patience > 0 && ++noImprovement >= patience) {
+                    break;
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
+        return centroids;
+    }
+
+    /**
+     * Moves every centroid towards the mean of its rows in a batch, with a
+     * learning rate of (rows in this batch) / (rows seen so far).
+     * @param centroids row-major centroids, updated in place
+     * @param means row-major batch means from the engine
+     * @param sizes rows of every cluster in the batch
+     * @param seen  rows seen so far by every centroid, updated in place
+     * @param dims  attributes per centroid
+     */
+    static void moveCentroids(double[] centroids, double[] means, int[] sizes,
+                              long[] seen, int dims) {
+        for (int c = 0; c < sizes.length; c++) {
+            if (sizes[c] == 0) {
+                continue;
+            }
+            seen[c] += sizes[c];
+            double rate = (double) sizes[c] / seen[c];
+            for (int j = c * dims; j < (c + 1) * dims; j++) {
+                centroids[j] += rate * (means[j] - centroids[j]);
+            }
+        }
+    }
+
+    /**
+     * Number of batches run by the last fit.
+     * @return batch count
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * Assigns every row of the full dataset to its nearest centroid.
+     * @param centroids row-major centroids
+     * @return cluster index, starting at 0, of every row
+     */
+    public int[] assign(double[] centroids) {
+        ParallelKMeansEngine engine = new ParallelKMeansEngine(data,
+                numCentroids, numThreads, kernel);
+        try {
+            return engine.assign(centroids);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Clusters a file with mini-batches. Takes the options of
+     * {@link KMeansCli} for the clusters, threads, kernel, seeding, seed
+     * and file; kmeans.batch and kmeans.batches set the batch size and cap.
+     * @param args  command line arguments
+     */
+    public static void main(String[] args) {
+        KMeansCli.Options options = KMeansCli.parse(args, "pool");
+        if (options == null) {
+            return;
+        }
+        KMeansCli.requireBasicOptions(options, "MiniBatchKMeans");
+        KMeans kMeans = options.kMeans;
+        int numCentroids = kMeans.getNumCentroids();
+        Random random = kMeans.newRandom();
+        Dataset data = Dataset.load(options.file);
+        int batchSize = Integer.getInteger("kmeans.batch", 32);
+        System.out.println("Kernel: " + kMeans.getKernelName() +
+                ", batch size " + batchSize);
+
+        MiniBatchKMeans miniBatch = new MiniBatchKMeans(data, numCentroids,
+                batchSize, kMeans.getNumThreads(), kMeans.getKernel(),
+                random);
+        miniBatch.setMaxBatches(Integer.getInteger("kmeans.batches", 1000));
+        double[] centroids = kMeans.getSeeder().seed(data, numCentroids,
+                random);
+
+        Long startTime = System.currentTimeMillis();
+        centroids = miniBatch.fit(centroids);
+        Long endTime = System.currentTimeMillis();
+        System.out.println("Time until convergence: " + (endTime-startTime)
+                + "ms");
+        System.out.println("Num batches: " + miniBatch.getBatches());
+
+        KMeansCli.printClusterStats(data, miniBatch.assign(centroids),
+                numCentroids);
+    }
+}
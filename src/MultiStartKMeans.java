@@ -0,0 +1,174 @@
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many single-threaded {@link KMeans} fits of one dataset at once and
+ * keeps the lowest-inertia result, for best-of-R restarts and for sweeps
+ * over k. All restarts read the same dataset; a fixed pool with one thread
+ * per core runs them. Once a restart of some k has finished, other
+ * restarts of that k are cancelled as soon as, after a few iterations,
+ * their inertia is clearly above the best finished one, since Lloyd
+ * iterations rarely recover from that.
+ */
+public class MultiStartKMeans {
+    private static final double DEFAULT_CANCEL_SLACK = 0.1; // 10% worse
+    private static final int DEFAULT_MIN_ITERATIONS = 3;    // before cancel
+
+    private final KMeans.Builder builder;   // settings of every restart
+    private final int restarts; // fits per k
+    private final int numThreads;   // restarts run at once
+    private final Long seed;    // seed of the restart seeds, null for random
+    private double cancelSlack = DEFAULT_CANCEL_SLACK;  // inertia margin
+    private int minIterations = DEFAULT_MIN_ITERATIONS; // iterations kept
+    private final AtomicInteger cancelled = new AtomicInteger(); // last run
+
+    /**
+     * Constructor
+     * @param builder   settings of every restart, not modified; every
+     *                  restart runs single threaded on a copy with its own
+     *                  number of clusters and seed
+     * @param restarts  fits per number of clusters, at least 1
+     * @param numThreads    restarts run at once, at least 1
+     * @param seed  seed of the restart seeds, null for random ones
+     */
+    public MultiStartKMeans(KMeans.Builder builder, int restarts,
+                            int numThreads, Long seed) {
+        if (restarts < 1 || numThreads < 1) {
+            throw new IllegalArgumentException("Need at least 1 restart " +
+                    "and 1 thread");
+        }
+        this.builder = builder;
+        this.restarts = restarts;
+        this.numThreads = numThreads;
+        this.seed = seed;
+    }
+
+    /**
+     * Sets how much worse than the best finished restart a restart's
+     * inertia may be before it is cancelled.
+     * @param cancelSlack   fraction of the best inertia, or
+     *                      {@link Double#POSITIVE_INFINITY} to never cancel
+     */
+    public void setCancelSlack(double cancelSlack) {
+        this.cancelSlack = cancelSlack;
+    }
+
+    /**
+     * Sets the iterations every restart runs before it can be cancelled.
+     * @param minIterations iteration count
+     */
+    public void setMinIterations(int minIterations) {
+        this.minIterations = minIterations;
+    }
+
+    /**
+     * Runs the restarts for one number of clusters.
+     * @param data  Dataset to cluster
+     * @param numCentroids  number of clusters
+     * @return the lowest-inertia result
+     */
+    public KMeansResult fit(Dataset data, int numCentroids) {
+        return sweep(data, new int[] {numCentroids}).get(numCentroids);
+    }
+
+    /**
+     * Runs the restarts for every number of clusters, all in one pool.
+     * @param data  Dataset to cluster
+     * @param ks    numbers of clusters
+     * @return the lowest-inertia result of every k, in the order of ks
+     * @throws IllegalArgumentException if a setting of the builder is bad
+     */
+    public Map<Integer, KMeansResult> sweep(Dataset data, int[] ks) {
+        Random seeds = seed == null ? new Random() : new Random(seed);
+        Map<Integer, AtomicLong> bestInertia = new HashMap<>();
+        List<Integer> taskKs = new ArrayList<>();
+        List<KMeans> runs = new ArrayList<>();
+        for (int r = 0; r < restarts; r++) {
+            for (int k: ks) {
+                bestInertia.putIfAbsent(k, new AtomicLong(
+                        Double.doubleToLongBits(Double.POSITIVE_INFINITY)));
+                taskKs.add(k);
+                runs.add(builder.copyForRestart(k, seeds.nextLong())
+                        .build());
+            }
+        }
+
+        cancelled.set(0);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<KMeansResult>> futures = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i++) {
+                KMeans run = runs.get(i);
+                AtomicLong best = bestInertia.get(taskKs.get(i));
+                futures.add(pool.submit(() -> restart(run, data, best)));
+            }
+            Map<Integer, KMeansResult> results = new LinkedHashMap<>();
+            for (int k: ks) {
+                results.put(k, null);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                KMeansResult result = futures.get(i).get();
+                KMeansResult kept = results.get(taskKs.get(i));
+                if (result != null && (kept == null ||
+                        result.getInertia() < kept.getInertia())) {
+                    results.put(taskKs.get(i), result);
+                }
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fitting", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs one restart and publishes its inertia if it is the best of its
+     * k so far.
+     * @param run   the configured fit
+     * @param data  Dataset to cluster
+     * @param best  bits of the best finished inertia of the same k
+     * @return the result, or null if the restart was cancelled
+     */
+    private KMeansResult restart(KMeans run, Dataset data, AtomicLong best) {
+        int[] iterations = new int[1];
+        KMeansResult result = run.fit(data, inertia ->
+                ++iterations[0] >= minIterations && inertia >
+                        Double.longBitsToDouble(best.get()) *
+                                (1.0 + cancelSlack));
+        if (result == null) {
+            cancelled.incrementAndGet();
+            return null;
+        }
+        long bits = Double.doubleToLongBits(result.getInertia());
+        long current = best.get();
+        while (result.getInertia() < Double.longBitsToDouble(current) &&
+                !best.compareAndSet(current, bits)) {
+            current = best.get();
+        }
+        return result;
+    }
+
+    /**
+     * Number of restarts cancelled by the last fit or sweep.
+     * @return restart count
+     */
+    public int getCancelledCount() {
+        return cancelled.get();
+    }
+}
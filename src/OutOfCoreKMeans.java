@@ -0,0 +1,472 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * K-means over a {@link BinaryDataset} file larger than memory. Every Lloyd
+ * iteration is one pass over the file in chunks of a fixed number of rows:
+ * a reader thread copies the next chunk out of the mapped file while the
+ * worker threads assign and accumulate the current one, so reading overlaps
+ * with clustering. Only the centroids, the per-cluster sums and two chunk
+ * buffers are ever resident; row counts are longs, so the file may hold
+ * more rows than an array can. Convert CSV files once with
+ * {@link BinaryDataset#main}.
+ */
+public class OutOfCoreKMeans {
+    private static final int NUM_THREADS =
+            Runtime.getRuntime().availableProcessors(); //number of threads
+    private static final int NUM_CENTROIDS = 3; //number of centroids
+    private static final int BUFFERS = 2;   //chunk being read and clustered
+    private static final int SAMPLE_PER_CENTROID = 256; //rows for seeding
+    private static final Chunk END_OF_FILE = new Chunk(0);
+
+    private final String fileName;  // binary dataset to cluster
+    private final int numCentroids; // number of clusters
+    private final int chunkRows;    // rows per chunk
+    private final int numThreads;   // worker threads
+    private final AssignmentKernel kernel;  // nearest-centroid search
+    private double tolerance = KMeans.DEFAULT_TOLERANCE; // shift to stop at
+    private int maxIterations = KMeans.DEFAULT_MAX_ITERATIONS;  // cap
+    private long[] clusterSizes;    // rows per cluster, last iteration
+    private double inertia; // inertia of the last iteration
+    private int iterations; // iterations of the last fit
+
+    /**
+     * Rows of the file copied into memory, with their place in the file.
+     */
+    private static class Chunk {
+        final double[] values;  // row-major values
+        long firstRow;  // row of the file of the first row
+        int rows;   // rows held
+
+        /**
+         * Constructor
+         * @param numValues capacity in values
+         */
+        Chunk(int numValues) {
+            this.values = new double[numValues];
+        }
+    }
+
+    /**
+     * Per-cluster sums, counts and inertia of a range of rows.
+     */
+    private static class Partial {
+        final double[] sums;    // per-cluster attribute sums
+        final long[] counts;    // per-cluster row counts
+        double inertia; // squared distances of the rows to their centroids
+
+        /**
+         * Constructor
+         * @param numCentroids  number of clusters
+         * @param dims  attributes per row
+         */
+        Partial(int numCentroids, int dims) {
+            sums = new double[numCentroids * dims];
+            counts = new long[numCentroids];
+        }
+
+        /**
+         * Adds another partial into this one.
+         * @param other partial of another range
+         */
+        void add(Partial other) {
+            for (int j = 0; j < sums.length; j++) {
+                sums[j] += other.sums[j];
+            }
+            for (int c = 0; c < counts.length; c++) {
+                counts[c] += other.counts[c];
+            }
+            inertia += other.inertia;
+        }
+    }
+
+    /**
+     * Work done on every chunk of a pass.
+     */
+    private interface ChunkTask {
+        /**
+         * Processes one chunk with the worker pool.
+         * @param chunk rows to process
+         * @throws IOException if writing a result fails
+         */
+        void process(Chunk chunk) throws IOException;
+    }
+
+    /**
+     * Constructor
+     * @param fileName  binary dataset to cluster
+     * @param numCentroids  number of clusters
+     * @param chunkRows rows per chunk; two chunks are resident at once
+     * @param numThreads    worker threads
+     * @param kernel    nearest-centroid search
+     */
+    public OutOfCoreKMeans(String fileName, int numCentroids, int chunkRows,
+                           int numThreads, AssignmentKernel kernel) {
+        this.fileName = fileName;
+        this.numCentroids = numCentroids;
+        this.chunkRows = chunkRows;
+        this.numThreads = Math.max(1, numThreads);
+        this.kernel = kernel;
+    }
+
+    /**
+     * Sets the centroid shift below which a fit has converged.
+     * @param tolerance non-negative tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Sets the number of passes after which a fit stops even if it has not
+     * converged.
+     * @param maxIterations iteration cap
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Picks starting centroids with k-means++ over a random sample of
+     * rows, read one by one without a pass over the file.
+     * @param random    source of randomness
+     * @return row-major starting centroids
+     * @throws IOException if the file cannot be read
+     */
+    public double[] seed(Random random) throws IOException {
+        try (FileChannel channel = open()) {
+            BinaryDataset.Header header = BinaryDataset.readHeader(channel,
+                    fileName);
+            long rows = header.getRows();
+            int dims = header.getDimensions();
+            if (rows < numCentroids) {
+                throw new IllegalArgumentException("Cannot find " +
+                        numCentroids + " clusters in " + rows + " rows");
+            }
+            int numSample = (int) Math.min(rows,
+                    (long) numCentroids * SAMPLE_PER_CENTROID);
+            TreeSet<Long> picked = new TreeSet<>();
+            while (picked.size() < numSample) {
+                picked.add(Math.floorMod(random.nextLong(), rows));
+            }
+            double[] sample = new double[numSample * dims];
+            double[] row = new double[dims];
+            int i = 0;
+            for (long r: picked) {
+                BinaryDataset.readRows(channel, header, r, 1, row);
+                System.arraycopy(row, 0, sample, i++ * dims, dims);
+            }
+            return KMeansPlusPlusSeeder.choose(sample, null, numSample, dims,
+                    numCentroids, random);
+        }
+    }
+
+    /**
+     * Runs Lloyd iterations, one pass over the file each, until the
+     * centroids move less than the tolerance or the cap is reached.
+     * @param centroids row-major starting centroids, not modified
+     * @return row-major fitted centroids
+     * @throws IOException if the file cannot be read
+     */
+    public double[] fit(double[] centroids) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try {
+            int dims = centroids.length / numCentroids;
+            iterations = 0;
+            boolean converged = false;
+            while (!converged && iterations < maxIterations) {
+                iterations++;
+                final double[] current = centroids;
+                Partial total = new Partial(numCentroids, dims);
+                pass(workers, chunk -> {
+                    for (Partial p: runParts(workers, chunk,
+                            (from, to) -> accumulate(chunk, from, to,
+                                    current, dims))) {
+                        total.add(p);
+                    }
+                });
+
+                double[] newCentroids = new double[numCentroids * dims];
+                for (int c = 0; c < numCentroids; c++) {
+                    for (int j = c * dims; j < (c + 1) * dims; j++) {
+                        newCentroids[j] = total.counts[c] == 0 ?
+                                current[j] : total.sums[j] / total.counts[c];
+                    }
+                }
+                clusterSizes = total.counts;
+                inertia = total.inertia;
+                converged = KMeans.isConverged(centroids, newCentroids, dims,
+                        tolerance);
+                centroids = newCentroids;
+            }
+            return centroids;
+        }
+        finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Writes the nearest centroid of every row to a file, one
+     * little-endian int per row in file order, with one more pass.
+     * @param centroids row-major centroids
+     * @param outFile   file to write
+     * @throws IOException if a file cannot be read or written
+     */
+    public void writeAssignment(double[] centroids, String outFile)
+            throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try (FileChannel out = FileChannel.open(Paths.get(outFile),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int dims = centroids.length / numCentroids;
+            int[] assignment = new int[chunkRows];
+            ByteBuffer buffer = ByteBuffer.allocate(4 * chunkRows)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            pass(workers, chunk -> {
+                runParts(workers, chunk, (from, to) -> {
+                    kernel.nearestBlock(chunk.values, from, to, centroids,
+                            numCentroids, dims, assignment, from);
+                    return null;
+                });
+                buffer.clear();
+                buffer.asIntBuffer().put(assignment, 0, chunk.rows);
+                buffer.limit(4 * chunk.rows);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            });
+        }
+        finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * One pass over the file: a reader thread fills free chunk buffers in
+     * file order while this thread hands the filled ones to the task.
+     * @param workers   worker pool, used by the task
+     * @param task  work done on every chunk, in file order
+     * @throws IOException if the file cannot be read, the reader is
+     *                     interrupted or the task fails
+     * @throws RuntimeException if reading the rows fails, e.g. on a
+     *                          corrupt file; the pass is not finished
+     */
+    private void pass(ExecutorService workers, ChunkTask task)
+            throws IOException {
+        try (FileChannel channel = open()) {
+            BinaryDataset.Header header = BinaryDataset.readHeader(channel,
+                    fileName);
+            long rows = header.getRows();
+            int dims = header.getDimensions();
+            BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(BUFFERS);
+            BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(BUFFERS + 1);
+            for (int b = 0; b < BUFFERS; b++) {
+                free.add(new Chunk(chunkRows * dims));
+            }
+            Throwable[] failure = new Throwable[1];   //read after join
+            Thread reader = new Thread(() -> {
+                try {
+                    for (long row = 0; row < rows; row += chunkRows) {
+                        Chunk chunk = free.take();
+                        chunk.firstRow = row;
+                        chunk.rows = (int) Math.min(chunkRows, rows - row);
+                        BinaryDataset.readRows(channel, header, row,
+                                chunk.rows, chunk.values);
+                        full.put(chunk);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure[0] = e;
+                } catch (Throwable e) {
+                    failure[0] = e;
+                } finally {
+                    full.add(END_OF_FILE);  //never blocks: BUFFERS + 1 slots
+                }
+            }, "kmb-reader");
+            reader.setDaemon(true);
+            reader.start();
+
+            try {
+                Chunk chunk = full.take();
+                while (chunk != END_OF_FILE) {
+                    task.process(chunk);
+                    free.put(chunk);
+                    chunk = full.take();
+                }
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " +
+                        fileName, e);
+            } finally {
+                reader.interrupt();
+            }
+            if (failure[0] instanceof IOException) {
+                throw (IOException) failure[0];
+            }
+            if (failure[0] instanceof RuntimeException) {
+                throw (RuntimeException) failure[0];
+            }
+            if (failure[0] instanceof Error) {
+                throw (Error) failure[0];
+            }
+            if (failure[0] != null) {
+                throw new IOException("Reader of " + fileName +
+                        " was interrupted", failure[0]);
+            }
+        }
+    }
+
+    /**
+     * Splits the rows of a chunk into one range per worker and runs a
+     * function on every range.
+     * @param workers   worker pool
+     * @param chunk rows to split
+     * @param part  function of a range [from, to) of the chunk's rows
+     * @param <T>   result of a range
+     * @return the result of every range, in row order
+     * @throws IOException if a range failed
+     */
+    private <T> List<T> runParts(ExecutorService workers, Chunk chunk,
+                                 RangeFunction<T> part) throws IOException {
+        int numParts = Math.max(1, Math.min(numThreads, chunk.rows));
+        List<Callable<T>> calls = new ArrayList<>();
+        for (int p = 0; p < numParts; p++) {
+            int from = (int) ((long) chunk.rows * p / numParts);
+            int to = (int) ((long) chunk.rows * (p + 1) / numParts);
+            calls.add(() -> part.apply(from, to));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> f: workers.invokeAll(calls)) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while clustering", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Clustering a chunk failed", e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Function of a range of rows of a chunk.
+     * @param <T>   result type
+     */
+    private interface RangeFunction<T> {
+        /**
+         * Processes rows [from, to) of a chunk.
+         * @param from  first row (inclusive)
+         * @param to    last row (exclusive)
+         * @return the result
+         */
+        T apply(int from, int to);
+    }
+
+    /**
+     * Assigns a range of rows of a chunk and adds them to a new partial.
+     * @param chunk rows of the file
+     * @param from  first row of the chunk (inclusive)
+     * @param to    last row of the chunk (exclusive)
+     * @param centroids row-major centroids
+     * @param dims  attributes per row
+     * @return the partial
+     */
+    private Partial accumulate(Chunk chunk, int from, int to,
+                               double[] centroids, int dims) {
+        Partial partial = new Partial(numCentroids, dims);
+        int[] block = new int[to - from];
+        kernel.nearestBlock(chunk.values, from, to, centroids, numCentroids,
+                dims, block, 0);
+        for (int row = from; row < to; row++) {
+            int offset = row * dims;
+            int cluster = block[row - from];
+            partial.inertia += DistanceKernel.squaredDistance(chunk.values,
+                    offset, centroids, cluster * dims, dims);
+            DistanceKernel.accumulate(chunk.values, offset, partial.sums,
+                    cluster * dims, dims);
+            partial.counts[cluster]++;
+        }
+        return partial;
+    }
+
+    /**
+     * Opens the file for reading.
+     * @return the open channel
+     * @throws IOException if the file cannot be opened
+     */
+    private FileChannel open() throws IOException {
+        return FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    }
+
+    /**
+     * Number of rows in every cluster in the last iteration.
+     * @return array of sizes, in cluster order
+     */
+    public long[] getClusterSizes() {
+        return clusterSizes;
+    }
+
+    /**
+     * Sum of squared distances of all rows to their centroids in the last
+     * iteration.
+     * @return the inertia
+     */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * Number of passes the last fit ran.
+     * @return iteration count
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: OutOfCoreKMeans data.kmb [k] " +
+                    "[assignment.bin]");
+            return;
+        }
+        int numCentroids = args.length > 1 ? Integer.parseInt(args[1]) :
+                NUM_CENTROIDS;
+        int chunkRows = Integer.getInteger("kmeans.chunk", 1 << 16);
+        AssignmentKernel kernel = AssignmentKernel.forName(
+                System.getProperty("kmeans.kernel", "auto"), numCentroids);
+        System.out.println("Kernel: " + kernel.getName() + ", chunk size " +
+                chunkRows);
+
+        OutOfCoreKMeans kMeans = new OutOfCoreKMeans(args[0], numCentroids,
+                chunkRows, NUM_THREADS, kernel);
+        Long startTime = System.currentTimeMillis();
+        double[] centroids = kMeans.fit(kMeans.seed(new Random()));
+        Long endTime = System.currentTimeMillis();
+        System.out.println("Time until convergence: " + (endTime-startTime)
+                + "ms");
+        System.out.println("Num iterations: " + kMeans.getIterations());
+        long[] sizes = kMeans.getClusterSizes();
+        for (int c = 0; c < numCentroids; c++) {
+            System.out.println("Cluster " + (c+1) + ": " + sizes[c] +
+                    " rows");
+        }
+        if (args.length > 2) {
+            kMeans.writeAssignment(centroids, args[2]);
+        }
+    }
+}
@@ -1,22 +1,51 @@
-import java.util.*;
-
 /**
- * Given a cluster of data, find the average of all datapoints to generate a
- * new centroid for next iteration of k-means.
+ * One unit of the centroid step: given the partial sums and counts of one
+ * cluster from every clustering worker, averages a block of its attributes
+ * to generate that part of the new centroid for the next iteration of
+ * k-means. A cluster is split into several attribute blocks when there are
+ * fewer clusters than threads, so the step uses every core whatever k is.
+ * Every unit writes only its own block of the row-major result, so the
+ * result does not depend on which thread runs which unit. A single instance
+ * is reused across iterations through {@link #reset(ParallelCluster[],
+ * double[], double[], int[])}.
  */
 public class ParallelCentroid implements Runnable {
-    private List<IrisData> cluster; //data passed in
-    private List<IrisData> newCentroidsList; //data I will write to
-    private IrisData newCentroid;   //the new centroid
+    private final int clusterIndex;   //cluster I reduce
+    private final int fromDim, toDim; //attributes of it I reduce
+    private final int dimensions; //attributes per centroid
+    private ParallelCluster[] partials; //workers holding partial sums
+    private double[] oldCentroids; //kept if my cluster ends up empty
+    private double[] newCentroids; //row-major array I write my block of
+    private int[] clusterSizes; //array the first block writes the size to
 
     /**
      * Constructor
-     * @param data  List of IrisData objects
-     * @param newCentroids  List of newCentrods to write to
+     * @param clusterIndex  index of the cluster, starting at 0
+     * @param fromDim   first attribute of my block (inclusive)
+     * @param toDim last attribute of my block (exclusive)
+     * @param dimensions    attributes per centroid
+     */
+    public ParallelCentroid(int clusterIndex, int fromDim, int toDim,
+                            int dimensions) {
+        this.clusterIndex = clusterIndex;
+        this.fromDim = fromDim;
+        this.toDim = toDim;
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Hands the worker the partials of the next iteration.
+     * @param partials  clustering workers holding partial sums
+     * @param oldCentroids  row-major centroids of the previous iteration
+     * @param newCentroids  row-major centroids to write my block of
+     * @param clusterSizes  array to write my cluster's size to
      */
-    public ParallelCentroid(List<IrisData> data, List<IrisData> newCentroids) {
-        this.cluster = data;
-        this.newCentroidsList = newCentroids;
+    public void reset(ParallelCluster[] partials, double[] oldCentroids,
+                      double[] newCentroids, int[] clusterSizes) {
+        this.partials = partials;
+        this.oldCentroids = oldCentroids;
+        this.newCentroids = newCentroids;
+        this.clusterSizes = clusterSizes;
     }
 
     /**
@@ -24,47 +53,34 @@ public class ParallelCentroid implements Runnable {
      */
     @Override
     public void run() {
-        newCentroid = getClusterAvg();
-        putLocalData();
+        getClusterAvg();
     }
 
     /**
-     * Given a cluster, generate a new centroid by calculating the average.
-     * @return a new IrisData object
+     * Adds up the partial sums of my block from every clustering worker and
+     * divides by the total count. An empty cluster keeps its old centroid.
      */
-    private IrisData getClusterAvg() {
-        int clusterSize = cluster.size();
-        Double sepialLengthAvg = 0.0,
-                sepialWidthAvg = 0.0,
-                petalLengthAvg = 0.0,
-                petalWidthAvg = 0.0;
-        for (IrisData i: cluster) {
-            sepialLengthAvg += i.sepialLength;
-            sepialWidthAvg += i.sepialWidth;
-            petalLengthAvg += i.petalLength;
-            petalWidthAvg += i.petalWidth;
+    private void getClusterAvg() {
+        int offset = clusterIndex * dimensions;
+        int clusterSize = 0;
+        for (ParallelCluster p: partials) {
+            clusterSize += p.getCounts()[clusterIndex];
+        }
+        if (fromDim == 0) {
+            clusterSizes[clusterIndex] = clusterSize;
+        }
+        if (clusterSize == 0) {
+            System.arraycopy(oldCentroids, offset + fromDim, newCentroids,
+                    offset + fromDim, toDim - fromDim);
+            return;
         }
 
-        //round it up to two trailing decimal places
-        sepialLengthAvg = Math.round((sepialLengthAvg/clusterSize) * 100.0) /
-                100.0;
-        sepialWidthAvg = Math.round((sepialWidthAvg/clusterSize) * 100.0) /
-                100.0;
-        petalLengthAvg = Math.round((petalLengthAvg/clusterSize) * 100.0) /
-                100.0;
-        petalWidthAvg = Math.round((petalWidthAvg/clusterSize) * 100.0) /
-                100.0;
-
-        return new IrisData(sepialLengthAvg, sepialWidthAvg, petalLengthAvg,
-                petalWidthAvg);
-    }
-
-    /**
-     * Adds the newly calculated centroid to a list.
-     */
-    private void putLocalData() {
-        synchronized (newCentroidsList) {
-            newCentroidsList.add(newCentroid);
+        for (int j = offset + fromDim; j < offset + toDim; j++) {
+            double sum = 0.0;
+            for (ParallelCluster p: partials) {
+                sum += p.getSums()[j];
+            }
+            newCentroids[j] = sum / clusterSize;
         }
     }
 }
@@ -1,102 +1,252 @@
 import java.util.*;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
 
+/**
+ * Worker that clusters one contiguous partition of the dataset around the
+ * current centroids. A single instance is reused across iterations; the
+ * engine hands it new centroids through {@link #resetFused(double[], int)}
+ * before every run.
+ *
+ * In fused mode the worker does not build cluster lists at all: it keeps
+ * per-cluster running sums and counts while assigning points, and the
+ * engine reduces those small partials. The final assignment is only written
+ * on demand after {@link #reset(double[], int, int[])}, each worker filling
+ * its own range of a shared array.
+ *
+ * With pruning enabled the worker keeps {@link HamerlyBounds} for its
+ * partition, so rows whose bounds prove their cluster cannot change are
+ * accumulated without computing any distance.
+ */
 public class ParallelCluster implements Runnable {
-    private List<IrisData> myData; // Data passed in
-    private List<IrisData> centroids;   // Centroids for clustering
-    private HashMap<Integer, List<IrisData>> finalClusters; // List to write to
-    private HashMap<Integer, List<IrisData>> myClusters; // Clusters generated
-    private int dataSize; // Size of data passed in
+    private static final int BLOCK_SIZE = 256; // rows per kernel call
+
+    private AssignmentKernel kernel; // Nearest-centroid search
+    private double[] values; // Row-major values of the whole dataset
+    private int dimensions; // Attributes per row
+    private double[] centroids;   // Row-major centroids for clustering
+    private int numCentroids; // Number of centroids
+    private int[] assignment; // Cluster index per row, written by index
     private int startIndex, endIndex; // Indices for my data
     private int threadID; // Thread ID
-    private CyclicBarrier barrier; // Barrier
+    private boolean fused; // accumulate sums instead of assigning
+    private double[] sums = new double[0]; // per-cluster attribute sums
+    private int[] counts = new int[0]; // per-cluster point counts
+    private double inertia; // squared distances of my rows to centroids
+    private int[] block = new int[BLOCK_SIZE]; // assignment of one block
+    private HamerlyBounds bounds; // bounds of my rows, null without pruning
+    private double[] halfSeparation; // per-centroid pruning threshold
+    private double[] drift; // centroid movement since the last iteration
+    private int[] previous; // cluster of my rows last run, null w/o metrics
+    private int changed; // rows whose cluster changed in the last run
 
     /** Constructor
-     * @param data List of IrisData objects
-     * @param centroids List of IrisData objects
-     * @param clusters  HashMap of clusters
-     * @param dataSize Size of the data I should cluster
+     * @param values Row-major values of the whole dataset, shared by all
+     *               workers
+     * @param dimensions Attributes per row
+     * @param startIndex First row of my partition (inclusive)
+     * @param endIndex Last row of my partition (exclusive)
      * @param threadID Thread ID
-     * @param b Barrier
+     * @param kernel Nearest-centroid search to use
      */
-    public ParallelCluster(List<IrisData> data, List<IrisData> centroids,
-                           HashMap<Integer, List<IrisData>> clusters, int
-                                dataSize, int threadID, CyclicBarrier b) {
+    public ParallelCluster(double[] values, int dimensions, int startIndex,
+                           int endIndex, int threadID,
+                           AssignmentKernel kernel) {
+        this.kernel = kernel;
+        this.values = values;
+        this.dimensions = dimensions;
+        this.threadID = threadID;
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+    }
+
+    /**
+     * Hands the worker the centroids to assign my rows to and the shared
+     * array to write the assignment to. Must be called while the worker is
+     * parked on the engine's barrier.
+     * @param centroids Row-major centroids
+     * @param numCentroids  Number of centroids
+     * @param assignment    Cluster index per row of the whole dataset
+     */
+    public void reset(double[] centroids, int numCentroids, int[]
+            assignment) {
         this.centroids = centroids;
-        this.finalClusters = clusters;
-        myClusters = new HashMap<>();
-        for (int i = 1; i <= centroids.size(); i++) {
-            myClusters.put(i, new ArrayList<IrisData>());
+        this.numCentroids = numCentroids;
+        this.assignment = assignment;
+        this.fused = false;
+    }
+
+    /**
+     * Turns triangle-inequality pruning on or off. Turning it on starts
+     * from fresh bounds.
+     * @param pruning   True to keep bounds for my rows
+     */
+    public void setPruning(boolean pruning) {
+        if (!pruning) {
+            bounds = null;
+        }
+        else if (bounds == null) {
+            bounds = new HamerlyBounds(startIndex, endIndex, dimensions);
+        }
+    }
+
+    /**
+     * Turns counting of the rows that change cluster on or off. Turning it
+     * on counts every row as changed in the next run.
+     * @param metrics   True to keep the cluster of my rows
+     */
+    public void setMetrics(boolean metrics) {
+        if (!metrics) {
+            previous = null;
+        }
+        else if (previous == null) {
+            previous = new int[endIndex - startIndex];
+            Arrays.fill(previous, -1);
+        }
+    }
+
+    /**
+     * Hands the worker the centroids of the next iteration in fused mode.
+     * Must be called while the worker is parked on the engine's barrier.
+     * @param centroids Row-major centroids
+     * @param numCentroids  Number of centroids
+     */
+    public void resetFused(double[] centroids, int numCentroids) {
+        resetFused(centroids, numCentroids, null, null);
+    }
+
+    /**
+     * Hands the worker the centroids of the next iteration in fused mode,
+     * together with the centroid geometry that pruning needs.
+     * @param centroids Row-major centroids
+     * @param numCentroids  Number of centroids
+     * @param halfSeparation    see {@link HamerlyBounds#halfSeparations}
+     * @param drift see {@link HamerlyBounds#drifts}
+     */
+    public void resetFused(double[] centroids, int numCentroids,
+                           double[] halfSeparation, double[] drift) {
+        this.halfSeparation = halfSeparation;
+        this.drift = drift;
+        this.centroids = centroids;
+        this.numCentroids = numCentroids;
+        this.assignment = null;
+        this.fused = true;
+        inertia = 0.0;
+        changed = 0;
+        if (counts.length != numCentroids) {
+            sums = new double[numCentroids * dimensions];
+            counts = new int[numCentroids];
+        }
+        else {
+            Arrays.fill(sums, 0.0);
+            Arrays.fill(counts, 0);
         }
-        this.dataSize = dataSize;
-        this.threadID = threadID;
-        this.startIndex = threadID * dataSize;
-        this.endIndex = startIndex + dataSize - 1;
-        this.myData = data.subList(startIndex, endIndex+1);
-        this.barrier = b;
     }
 
     /**
-     * Starts the thread by clustering datapoints around centroids
+     * Runs one iteration: accumulates my datapoints into my partial sums,
+     * or writes the cluster index of each of my rows.
      */
     @Override
     public void run() {
         //System.out.println("Thread: " + this.threadID + " starts: " +
          //       startIndex + " ends: " + endIndex);
-        //System.out.println(threadID + ": " + localData);
 
+        if (fused) {
+            accumulateData();
+            return;
+        }
         //cluster data to the centroids given
         clusterData();
-        try {
-            barrier.await();
-        } catch(InterruptedException | BrokenBarrierException e) {
-            e.printStackTrace();
-        }
-        putLocalData();
     }
 
     /**
-     * Creates clusters around centroids by calculating distances.
+     * Writes the index of the nearest centroid of each of my rows.
      */
     public void clusterData() {
-        for (IrisData i: myData) {
-            List<Double> distances = new ArrayList<>();
-            for (IrisData c: centroids) {
-                distances.add(getDistance(i, c));
+        kernel.nearestBlock(values, startIndex, endIndex, centroids,
+                numCentroids, dimensions, assignment, startIndex);
+    }
+
+    /**
+     * Assigns every datapoint to its nearest centroid and adds it to that
+     * cluster's running sum, without materializing any cluster lists.
+     */
+    public void accumulateData() {
+        if (bounds != null) {
+            bounds.update(values, centroids, numCentroids, halfSeparation,
+                    drift);
+            for (int row = startIndex; row < endIndex; row++) {
+                addRow(row, bounds.getAssigned(row));
+            }
+            return;
+        }
+        for (int from = startIndex; from < endIndex; from += BLOCK_SIZE) {
+            int to = Math.min(from + BLOCK_SIZE, endIndex);
+            kernel.nearestBlock(values, from, to, centroids, numCentroids,
+                    dimensions, block, 0);
+            for (int row = from; row < to; row++) {
+                addRow(row, block[row - from]);
             }
-            //get smallest distance and assign datapoint to nearest cluster
-            int minIndex = distances.indexOf(Collections.min(distances));
-            myClusters.get(minIndex+1).add(i);
         }
     }
 
     /**
-     * Calculates the Euclidean norm to find distance between two data points.
-     * @param datum1    one IrisData object
-     * @param datum2    another IrisData object
-     * @return a Double that is the distance
+     * Adds a row to the running sum, count and inertia of its cluster.
+     * @param row   row index
+     * @param cluster   index of the row's centroid
      */
-    private static double getDistance(IrisData datum1, IrisData datum2) {
-        double w = Math.pow((datum1.sepialLength - datum2.sepialLength), 2);
-        double x = Math.pow((datum1.sepialWidth - datum2.sepialWidth), 2);
-        double y = Math.pow((datum1.petalLength - datum2.petalLength), 2);
-        double z = Math.pow((datum1.petalWidth - datum2.petalWidth), 2);
-        return Math.sqrt(w+x+y+z);
+    private void addRow(int row, int cluster) {
+        int rowOffset = row * dimensions;
+        int offset = cluster * dimensions;
+        inertia += DistanceKernel.squaredDistance(values, rowOffset,
+                centroids, offset, dimensions);
+        DistanceKernel.accumulate(values, rowOffset, sums, offset,
+                dimensions);
+        counts[cluster]++;
+        if (previous != null && previous[row - startIndex] != cluster) {
+            previous[row - startIndex] = cluster;
+            changed++;
+        }
     }
 
     /**
-     * Adds newly generated cluster to HashMap.
+     * Per-cluster attribute sums of the last fused run, laid out as
+     * dimensions consecutive values per cluster.
+     * @return array of sums
      */
-    private void putLocalData() {
-        synchronized (finalClusters) {
-            for (Map.Entry<Integer, List<IrisData>> e: myClusters.entrySet()) {
-                List<IrisData> localDat = e.getValue();
-                if (!localDat.isEmpty()) {
-                    List<IrisData> finalDat = finalClusters.get(e.getKey());
-                    finalDat.addAll(localDat);
-                }
-            }
-        }
+    public double[] getSums() {
+        return sums;
+    }
+
+    /**
+     * Per-cluster point counts of the last fused run.
+     * @return array of counts
+     */
+    public int[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * Sum of squared distances of my rows to their centroids in the last
+     * fused run.
+     * @return the inertia of my partition
+     */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * Rows whose cluster changed in the last fused run.
+     * @return row count, or -1 without metrics
+     */
+    public int getChangedCount() {
+        return previous != null ? changed : -1;
+    }
+
+    /**
+     * Distances computed by the last pruned run.
+     * @return distance count, or -1 without pruning
+     */
+    public long getDistanceCount() {
+        return bounds != null ? bounds.getDistanceCount() : -1;
     }
 }
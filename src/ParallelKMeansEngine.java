@@ -0,0 +1,355 @@
+import java.util.*;
+import java.util.concurrent.Phaser;
+
+/**
+ * Long-lived k-means engine. Owns a fixed pool of worker threads that are
+ * started once and reused for every iteration, instead of creating, starting
+ * and joining new threads per iteration. The main thread and the workers meet
+ * on a Phaser three times per iteration: once to publish the centroids, once
+ * after the clustering step and once after the centroid step.
+ *
+ * Iterations are fused: workers assign and accumulate per-cluster sums and
+ * counts in a single pass over their partition of the {@link Dataset}, and
+ * the centroid step reduces those partials. The centroid step is split into
+ * (cluster, attribute block) units, enough to give every thread work when k
+ * is small, and every thread runs a fixed contiguous run of units, so the
+ * step is sized to the pool rather than to k. The per-row assignment is only
+ * built on demand by {@link #assign(double[])}.
+ */
+public class ParallelKMeansEngine implements KMeansEngine {
+    private static final int MIN_BLOCK_DIMS = 8; // attributes per unit, min
+    private final int numThreads;   // number of pooled threads
+    private final int numCentroids; // number of clusters
+    private final int dimensions;   // attributes per row
+    private final int dataSize; // rows in the dataset
+    private final ParallelCluster[] clusterWorkers; // one per thread
+    private final ParallelCentroid[] centroidWorkers; // centroid step units
+    private final int[] firstUnit;  // first centroid unit of every thread
+    private final Thread[] threads;  // the pool
+    private final Phaser phaser;    // barrier between main and workers
+    private volatile boolean shutdown;  // set to stop the pool
+    private boolean assignPass;   // true while writing the assignment
+    private boolean pruning;    // triangle-inequality pruning on
+    private double[] boundCentroids;    // centroids of the bounds
+    private int[] clusterSizes; // rows per cluster in the last iteration
+    private boolean metrics;    // time the phases and count changes
+    private final long[] waitNanos; // barrier wait per thread
+    private final long[] arrivedAt; // arrival of every thread at the end
+    private long assignNanos = -1;  // clustering phase of the last iteration
+    private long updateNanos = -1;  // centroid phase of the last iteration
+
+    /**
+     * Constructor. Partitions the data among the threads and starts the pool.
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
+     * @param numThreads    Number of threads in the pool
+     * @param kernel    Nearest-centroid search used by the workers
+     */
+    public ParallelKMeansEngine(Dataset data, int numCentroids,
+                                int numThreads, AssignmentKernel kernel) {
+        this.numThreads = Math.max(1, Math.min(numThreads, data.size()));
+        this.numCentroids = numCentroids;
+        this.dimensions = data.getDimensions();
+        this.dataSize = data.size();
+        this.clusterWorkers = new ParallelCluster[this.numThreads];
+        this.threads = new Thread[this.numThreads];
+        this.waitNanos = new long[this.numThreads];
+        this.arrivedAt = new long[this.numThreads];
+        this.phaser = new Phaser(this.numThreads + 1);
+
+        //partition work among threads, spreading the remainder; float
+        //storage is widened once here, not once per worker
+        double[] values = data.getValues();
+        int dataPerThread = dataSize / this.numThreads;
+        int dataLeft = dataSize % this.numThreads;
+        int start = 0;
+        for (int i = 0; i < this.numThreads; i++) {
+            int end = start + dataPerThread + (i < dataLeft ? 1 : 0);
+            clusterWorkers[i] = new ParallelCluster(values, dimensions, start,
+                    end, i, kernel);
+            start = end;
+        }
+
+        //split clusters into attribute blocks until every thread has work
+        int blocks = Math.max(1, Math.min((this.numThreads + numCentroids
+                - 1) / numCentroids, dimensions / MIN_BLOCK_DIMS));
+        this.centroidWorkers = new ParallelCentroid[numCentroids * blocks];
+        int unit = 0;
+        for (int c = 0; c < numCentroids; c++) {
+            for (int b = 0; b < blocks; b++) {
+                centroidWorkers[unit++] = new ParallelCentroid(c,
+                        dimensions * b / blocks,
+                        dimensions * (b + 1) / blocks, dimensions);
+            }
+        }
+        this.firstUnit = new int[this.numThreads + 1];
+        for (int i = 0; i <= this.numThreads; i++) {
+            firstUnit[i] = (int) ((long) centroidWorkers.length * i /
+                    this.numThreads);
+        }
+
+        for (int i = 0; i < this.numThreads; i++) {
+            final int threadID = i;
+            threads[i] = new Thread(() -> workerLoop(threadID),
+                    "kmeans-worker-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Constructor using the fastest available kernel.
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
+     * @param numThreads    Number of threads in the pool
+     */
+    public ParallelKMeansEngine(Dataset data, int numCentroids,
+                                int numThreads) {
+        this(data, numCentroids, numThreads, AssignmentKernel.best());
+    }
+
+    /**
+     * Constructor using a pool sized to the available cores.
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
+     */
+    public ParallelKMeansEngine(Dataset data, int numCentroids) {
+        this(data, numCentroids, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Body of every pooled thread. Waits for centroids, clusters its
+     * partition, then reduces its share of the clusters.
+     * @param threadID  index of the thread in the pool
+     */
+    private void workerLoop(int threadID) {
+        while (true) {
+            phaser.arriveAndAwaitAdvance(); // wait for centroids
+            if (shutdown) {
+                phaser.arriveAndDeregister();
+                return;
+            }
+            clusterWorkers[threadID].run();
+            long start = metrics ? System.nanoTime() : 0;
+            phaser.arriveAndAwaitAdvance(); // all partials ready
+            if (metrics) {
+                waitNanos[threadID] = System.nanoTime() - start;
+            }
+            if (!assignPass) {
+                for (int u = firstUnit[threadID]; u < firstUnit[threadID+1];
+                     u++) {
+                    centroidWorkers[u].run();
+                }
+            }
+            if (metrics) {
+                arrivedAt[threadID] = System.nanoTime();
+            }
+            phaser.arriveAndAwaitAdvance(); // new centroids ready
+        }
+    }
+
+    /**
+     * Runs one fused iteration of k-means on the pool: points are assigned
+     * and accumulated in a single pass, with no cluster lists and no lock.
+     * @param centroids row-major centroids of the current iteration
+     * @return row-major newly calculated centroids, in cluster order
+     */
+    public double[] iterate(double[] centroids) {
+        if (shutdown) {
+            throw new IllegalStateException("Engine has been shut down");
+        }
+        double[] newCentroids = new double[numCentroids * dimensions];
+        clusterSizes = new int[numCentroids];
+        assignPass = false;
+        double[] halfSeparation = null, drift = null;
+        if (pruning) {
+            halfSeparation = HamerlyBounds.halfSeparations(centroids,
+                    numCentroids, dimensions);
+            drift = HamerlyBounds.drifts(boundCentroids, centroids,
+                    numCentroids, dimensions);
+            boundCentroids = centroids;
+        }
+        for (ParallelCluster worker: clusterWorkers) {
+            worker.resetFused(centroids, numCentroids, halfSeparation, drift);
+        }
+        for (ParallelCentroid unit: centroidWorkers) {
+            unit.reset(clusterWorkers, centroids, newCentroids, clusterSizes);
+        }
+        runPhases();
+        return newCentroids;
+    }
+
+    /**
+     * Assigns every row to its nearest centroid with one pass over the
+     * data. Meant to be called once after the final iteration.
+     * @param centroids row-major final centroids
+     * @return cluster index, starting at 0, of every row
+     */
+    public int[] assign(double[] centroids) {
+        if (shutdown) {
+            throw new IllegalStateException("Engine has been shut down");
+        }
+        int[] assignment = new int[dataSize];
+        assignPass = true;
+        for (ParallelCluster worker: clusterWorkers) {
+            worker.reset(centroids, numCentroids, assignment);
+        }
+        runPhases();
+        return assignment;
+    }
+
+    /**
+     * Releases the workers for one iteration and waits for them to finish.
+     */
+    private void runPhases() {
+        phaser.arriveAndAwaitAdvance(); // release workers
+        long start = System.nanoTime();
+        phaser.arriveAndAwaitAdvance(); // wait for clustering
+        long clustered = System.nanoTime();
+        phaser.arriveAndAwaitAdvance(); // wait for centroids
+        if (metrics && !assignPass) {
+            long end = System.nanoTime();
+            assignNanos = clustered - start;
+            updateNanos = end - clustered;
+            //the last wait only ends now, so finish it on this thread
+            for (int i = 0; i < numThreads; i++) {
+                waitNanos[i] += end - arrivedAt[i];
+            }
+        }
+    }
+
+    /**
+     * Number of rows assigned to each cluster by the last iteration.
+     * @return array of sizes, in cluster order
+     */
+    public int[] getClusterSizes() {
+        return clusterSizes;
+    }
+
+    /**
+     * Sum of squared distances of all rows to the centroids they were
+     * assigned to in the last iteration.
+     * @return the inertia
+     */
+    public double getInertia() {
+        double inertia = 0.0;
+        for (ParallelCluster worker: clusterWorkers) {
+            inertia += worker.getInertia();
+        }
+        return inertia;
+    }
+
+    /**
+     * Turns Hamerly triangle-inequality pruning of the fused iterations on
+     * or off. Pruned iterations produce exactly the same clustering as the
+     * exhaustive scalar search while skipping rows whose cluster provably
+     * cannot change. Each worker keeps the bounds of its own partition.
+     * @param pruning   True to prune
+     */
+    public void setPruning(boolean pruning) {
+        this.pruning = pruning;
+        this.boundCentroids = null;
+        for (ParallelCluster worker: clusterWorkers) {
+            worker.setPruning(pruning);
+        }
+    }
+
+    /**
+     * Distances computed by the last pruned iteration, over all workers.
+     * @return distance count, or -1 without pruning
+     */
+    public long getDistanceCount() {
+        if (!pruning) {
+            return -1;
+        }
+        long count = 0;
+        for (ParallelCluster worker: clusterWorkers) {
+            count += worker.getDistanceCount();
+        }
+        return count;
+    }
+
+    /**
+     * Turns per-iteration metrics on or off. The clustering and centroid
+     * phases are timed on the main thread, every worker times its own wait
+     * at the two barriers that end them, and every worker counts the rows
+     * of its partition that changed cluster.
+     * @param metrics   True to record metrics
+     */
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+        assignNanos = -1;
+        updateNanos = -1;
+        for (ParallelCluster worker: clusterWorkers) {
+            worker.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * Time of the clustering phase of the last iteration.
+     * @return nanoseconds, or -1 without metrics
+     */
+    public long getAssignNanos() {
+        return assignNanos;
+    }
+
+    /**
+     * Time of the centroid phase of the last iteration.
+     * @return nanoseconds, or -1 without metrics
+     */
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    /**
+     * Time every worker spent at the barriers after its clustering and
+     * centroid work in the last iteration.
+     * @return nanoseconds per thread, or null without metrics
+     */
+    public long[] getWaitNanos() {
+        return metrics ? waitNanos.clone() : null;
+    }
+
+    /**
+     * Rows whose cluster changed in the last iteration, over all workers.
+     * @return row count, or -1 without metrics
+     */
+    public int getChangedCount() {
+        if (!metrics) {
+            return -1;
+        }
+        int changed = 0;
+        for (ParallelCluster worker: clusterWorkers) {
+            changed += worker.getChangedCount();
+        }
+        return changed;
+    }
+
+    /**
+     * Number of threads in the pool.
+     * @return thread count
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Stops the pool and waits for every worker to exit.
+     */
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        phaser.arriveAndDeregister();
+        for (Thread t: threads) {
+            try {
+                t.join();
+            }
+            catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+import java.util.Random;
+
+/**
+ * Picks distinct rows uniformly at random as the starting centroids.
+ */
+final class RandomSeeder implements CentroidSeeder {
+    @Override
+    public double[] seed(Dataset data, int numCentroids, Random random) {
+        return data.sampleRows(numCentroids, random);
+    }
+
+    @Override
+    public String getName() {
+        return "random";
+    }
+}
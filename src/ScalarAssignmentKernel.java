@@ -0,0 +1,17 @@
+/**
+ * Portable assignment kernel built on the scalar {@link DistanceKernel}
+ * loops. Used whenever the Vector API is unavailable.
+ */
+final class ScalarAssignmentKernel implements AssignmentKernel {
+    @Override
+    public int nearest(double[] values, int offset, double[] centroids,
+                       int numCentroids, int dims) {
+        return DistanceKernel.nearest(values, offset, centroids, numCentroids,
+                dims);
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * Portable float assignment kernel built on the scalar
+ * {@link DistanceKernel} loops. Used whenever the Vector API is
+ * unavailable.
+ */
+final class ScalarFloatAssignmentKernel implements FloatAssignmentKernel {
+    @Override
+    public int nearest(float[] values, int offset, float[] centroids,
+                       int numCentroids, int dims) {
+        return DistanceKernel.nearest(values, offset, centroids, numCentroids,
+                dims);
+    }
+
+    @Override
+    public String getName() {
+        return "scalar-float";
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.*;
+
+/**
+ * Column layout of a CSV dataset: the names of its numeric feature columns
+ * and whether a trailing class label column follows them. The number of
+ * features is the dimensionality every clustering routine works with.
+ */
+public class Schema {
+    /** Layout of the UCI Iris data: four measurements and the species. */
+    public static final Schema IRIS = new Schema(Arrays.asList(
+            "sepal length", "sepal width", "petal length", "petal width"),
+            "class");
+
+    private final List<String> featureNames; // numeric columns, in order
+    private final String labelName; // trailing label column, or null
+
+    /**
+     * Constructor
+     * @param featureNames  names of the numeric columns
+     * @param labelName name of the trailing label column, null if none
+     */
+    public Schema(List<String> featureNames, String labelName) {
+        if (featureNames.isEmpty()) {
+            throw new IllegalArgumentException("Schema needs a feature");
+        }
+        this.featureNames = new ArrayList<>(featureNames);
+        this.labelName = labelName;
+    }
+
+    /**
+     * Discovers the schema of a CSV file from its first line. If the first
+     * line is a header its column names are used; otherwise the features are
+     * named x0, x1, ... In both cases a last column that does not hold a
+     * number in the first data row is taken as the label.
+     * @param header    split first line of the file, or null if none
+     * @param firstRow  split first data row of the file
+     * @return a Schema
+     */
+    public static Schema discover(String[] header, String[] firstRow) {
+        int columns = firstRow.length;
+        boolean labeled = columns > 1 && !isNumber(firstRow[columns-1]);
+        int dims = labeled ? columns - 1 : columns;
+        List<String> names = new ArrayList<>();
+        for (int j = 0; j < dims; j++) {
+            names.add(header != null ? header[j] : "x" + j);
+        }
+        String label = null;
+        if (labeled) {
+            label = header != null ? header[dims] : "label";
+        }
+        return new Schema(names, label);
+    }
+
+    /**
+     * Whether a CSV field holds a number.
+     * @param field trimmed field
+     * @return True if it parses as a double, False otherwise
+     */
+    static boolean isNumber(String field) {
+        try {
+            Double.parseDouble(field);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Number of numeric features per row.
+     * @return dimensions
+     */
+    public int getDimensions() {
+        return featureNames.size();
+    }
+
+    /**
+     * Names of the numeric features.
+     * @return list of names
+     */
+    public List<String> getFeatureNames() {
+        return Collections.unmodifiableList(featureNames);
+    }
+
+    /**
+     * Whether rows carry a trailing class label.
+     * @return True if labeled, False otherwise
+     */
+    public boolean hasLabel() {
+        return labelName != null;
+    }
+
+    /**
+     * Name of the label column.
+     * @return the name, or null if rows are unlabeled
+     */
+    public String getLabelName() {
+        return labelName;
+    }
+
+    /**
+     * String representation of the schema
+     * @return a String
+     */
+    public String toString() {
+        return featureNames + (labelName != null ? " -> " + labelName : "");
+    }
+}
@@ -1,278 +1,255 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.*;
+import java.util.Arrays;
 
 /**
  * K-means clustering of Iris dataset from UCI
  * https://archive.ics.uci.edu/ml/datasets/iris
+ *
+ * Single-threaded {@link KMeansEngine}: every iteration assigns all rows on
+ * the calling thread, then averages the clusters in a second pass. It is
+ * the reference the parallel engines are compared against.
  */
-public class SequentialKMeans {
+public class SequentialKMeans implements KMeansEngine {
+    private final Dataset data; // dataset to cluster
+    private final double[] values;  // row-major values of the dataset
+    private final AssignmentKernel kernel;  // nearest-centroid search
+    private final int numCentroids; // number of clusters
+    private int[] assignment; // cluster index per row, reused
+    private int[] previous; // assignment of the last iteration, or null
+    private long assignNanos = -1;  // assignment time, -1 without metrics
+    private long updateNanos = -1;  // centroid step time
+    private int changed = -1;   // rows that changed cluster
+    private HamerlyBounds bounds;   // bounds of all rows, null without pruning
+    private double[] boundCentroids;    // centroids of the bounds
+    private int[] clusterSizes; // rows per cluster in the last iteration
+    private double inertia; // inertia of the last iteration
+    private long distanceCount; // distances of the last pruned iteration
+
     /**
-     * Takes a file name and reads in corresponding CSV data, creates
-     * IrisData object for each line of data, and returns a list of the
-     * IrisData objects.
-     * @param fileName  String for the file name
-     * @return  List of IrisData objects
+     * Constructor
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
+     * @param kernel    Nearest-centroid search
      */
-    private static List<IrisData> readFromFile(String fileName) {
-        BufferedReader br = null;
-        String line = "";
-        List<IrisData> dataFromFile = new ArrayList<>();
-        try {
-            br = new BufferedReader(new FileReader(fileName));
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(", ");
-                IrisData i = new IrisData(data);
-                dataFromFile.add(i);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                }
-                catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-        return dataFromFile;
+    public SequentialKMeans(Dataset data, int numCentroids,
+                            AssignmentKernel kernel) {
+        this.data = data;
+        this.values = data.getValues();
+        this.numCentroids = numCentroids;
+        this.kernel = kernel;
+        this.assignment = new int[data.size()];
     }
 
     /**
-     * Initial step of the clustering algorithm.
-     * Given a list of IrisData objects, selects three of them randomly by
-     * shuffling a copy of the list and returning the first three in a list.
-     * @param data  List of IrisData objects
-     * @param numCentroids  Number of objects to be picked as centroids
-     * @return  a List of IrisData objects
+     * Constructor using the exhaustive scalar kernel.
+     * @param data  Dataset to cluster
+     * @param numCentroids  Number of clusters
      */
-    private static List<IrisData> chooseCentroids(List<IrisData> data, int
-            numCentroids) {
-        List<IrisData> dataCopy = new ArrayList<>(data);
-        Collections.shuffle(dataCopy);
-        return dataCopy.subList(0, numCentroids);
+    public SequentialKMeans(Dataset data, int numCentroids) {
+        this(data, numCentroids, new ScalarAssignmentKernel());
+    }
+
+    @Override
+    public double[] iterate(double[] centroids) {
+        long start = System.nanoTime();
+        // assign every data point to a cluster
+        if (bounds != null) {
+            clusterPruned(centroids);
+        }
+        else {
+            cluster(centroids, assignment);
+        }
+        long assigned = System.nanoTime();
+
+        // for every cluster, find the average point
+        double[] newCentroids = getNewCentroids(centroids);
+        if (previous != null) {
+            assignNanos = assigned - start;
+            updateNanos = System.nanoTime() - assigned;
+            countChanges();
+        }
+        return newCentroids;
     }
 
     /**
-     * K-means algorithm. While there is no converengce, assign data points
-     * to clusters and recompute centroids.
-     * @param data  List of IrisData objects
-     * @param centroids List of IrisData objects as centroids for clusters
-     * @return HashMap of clusters
+     * Counts the rows whose cluster differs from the previous iteration and
+     * keeps the assignment for the next one.
      */
-    private static HashMap<Integer, List<IrisData>> runKMeans(List<IrisData>
-              data, List<IrisData> centroids) {
-        boolean convergence = false;
-        int iteration = 0;
-        HashMap<Integer, List<IrisData>> currentClusters = new HashMap<>();
-        while (!convergence) {
-            iteration++;
-            //System.out.println("Iteration: " + ++iteration);
-            //System.out.println("\tCentroids are " + centroids);
+    private void countChanges() {
+        changed = 0;
+        for (int row = 0; row < assignment.length; row++) {
+            if (assignment[row] != previous[row]) {
+                changed++;
+            }
+        }
+        int[] swap = previous;
+        previous = assignment;
+        assignment = swap;
+    }
 
-            // create initial cluster
-            currentClusters = cluster(data, centroids);
+    @Override
+    public int[] assign(double[] centroids) {
+        int[] result = new int[data.size()];
+        cluster(centroids, result);
+        return result;
+    }
 
+    @Override
+    public int[] getClusterSizes() {
+        return clusterSizes;
+    }
 
-            //check that no cluster is empty
-            //checkClusterPopulation(clusters);
+    @Override
+    public double getInertia() {
+        return inertia;
+    }
 
-            // find the new centroids of each cluster
-            //System.out.println("\tFinding average of each cluster:");
+    @Override
+    public void setPruning(boolean pruning) {
+        bounds = pruning ?
+                new HamerlyBounds(0, data.size(), data.getDimensions()) : null;
+        boundCentroids = null;
+    }
 
-            // for every cluster, find the average point
-            List<IrisData> newCentroids = getNewCentroids(currentClusters);
+    @Override
+    public long getDistanceCount() {
+        return bounds == null ? -1 : distanceCount;
+    }
 
-            //compare new and old centroids for convergence
-            //System.out.println("\tChecking convergence");
-            //System.out.println("\t\tOld: " + centroids);
-            //System.out.println("\t\tNew: " + newCentroids + "\n");
-            convergence = isConverged(centroids, newCentroids);
+    @Override
+    public void setMetrics(boolean metrics) {
+        if (metrics && previous == null) {
+            previous = new int[data.size()];
+            Arrays.fill(previous, -1);
+        }
+        else if (!metrics) {
+            previous = null;
+            assignNanos = -1;
+            updateNanos = -1;
+            changed = -1;
+        }
+    }
 
-            //if converged, clustering is complete
-            if (convergence) {
-                //System.out.println("Convergence found with " + iteration +
-                // " " +
-                //        "iterations\n");
-                break;
-            }
-            //System.out.println();
+    @Override
+    public long getAssignNanos() {
+        return assignNanos;
+    }
 
-            //otherwise, continue clustering with new centroids
-            centroids = newCentroids;
-            currentClusters = cluster(data, centroids);
-        }
-        System.out.println("Iterations: " + iteration);
-        return currentClusters;
+    @Override
+    public long getUpdateNanos() {
+        return updateNanos;
     }
 
-    /**
-     * Given a list of data, and the centroids, assign the data to the
-     * closest centroid by calculating their distances.
-     * @param data  List of IrisData objects
-     * @param centroids List of IrisData objects
-     * @return HashMap of clusters
-     */
-    private static HashMap<Integer, List<IrisData>> cluster (List<IrisData>
-                                      data, List<IrisData> centroids) {
-        HashMap<Integer, List<IrisData>> clusters = new HashMap<>();
-        for (int i = 1; i <= centroids.size(); i++) {
-            clusters.put(i, new ArrayList<IrisData>());
-        }
+    @Override
+    public long[] getWaitNanos() {
+        return previous == null ? null : new long[1];
+    }
 
-        //for each data point, find the distance for all centroids. It
-        // belongs in the cluster it has the smallest distance to.
-        for (IrisData i: data) {
-            List<Double> distances = new ArrayList<>();
-            for (IrisData c: centroids) {
-                distances.add(getDistance(i, c));
-            }
-            //get smallest distance and assign datapoint to nearest cluster
-            int minIndex = distances.indexOf(Collections.min(distances));
-            clusters.get(minIndex+1).add(i);
-        }
-        return clusters;
+    @Override
+    public int getChangedCount() {
+        return changed;
     }
 
-    /**
-     * From each cluster, calculate a new centroid by finding the average of
-     * its attributes.
-     * @param currentClusters HashMap of current clusters of an iteration
-     * @return list of new IrisData objects
-     */
-    private static List<IrisData> getNewCentroids(HashMap<Integer,
-            List<IrisData>> currentClusters) {
-        List<IrisData> newCentroids = new ArrayList<>();
+    @Override
+    public int getNumThreads() {
+        return 1;
+    }
 
-        for (Map.Entry<Integer, List<IrisData>> entry: currentClusters.entrySet
-                ()) {
-            Integer i = entry.getKey(); //cluster number
-            List<IrisData> clusterList = entry.getValue();  //cluster
-            IrisData clusterAvg = getClusterAverage(clusterList);
-            newCentroids.add(clusterAvg);
-            //System.out.println("\t\t" + i + ": " + clusterAvg);
-        }
-        //System.out.println();
-        return newCentroids;
+    @Override
+    public void shutdown() {
+        //no threads to stop
     }
 
     /**
-     * Calculates the Euclidean norm to find distance between two data points.
-     * @param datum1    one IrisData object
-     * @param datum2    another IrisData object
-     * @return a Double that is the distance
+     * Given the centroids, assign each row to the closest centroid by
+     * calculating their distances.
+     * @param centroids row-major centroids
+     * @param result    array to write the cluster index of every row to
      */
-    private static double getDistance(IrisData datum1, IrisData datum2) {
-        double w = Math.pow((datum1.sepialLength - datum2.sepialLength), 2);
-        double x = Math.pow((datum1.sepialWidth - datum2.sepialWidth), 2);
-        double y = Math.pow((datum1.petalLength - datum2.petalLength), 2);
-        double z = Math.pow((datum1.petalWidth - datum2.petalWidth), 2);
-        return Math.sqrt(w+x+y+z);
+    private void cluster(double[] centroids, int[] result) {
+        //for each data point, find the distance for all centroids. It
+        // belongs in the cluster it has the smallest distance to.
+        kernel.nearestBlock(values, 0, data.size(), centroids,
+                numCentroids, data.getDimensions(), result, 0);
     }
 
     /**
-     * Given a cluster, generate a new centroid by calculating the average.
-     * @param cluster a List of IrisData objects
-     * @return a new IrisData object
+     * Same as {@link #cluster}, but skips the rows whose Hamerly bounds
+     * prove their cluster cannot have changed since the last iteration.
+     * @param centroids row-major centroids
      */
-    private static IrisData getClusterAverage(List<IrisData> cluster) {
-        int clusterSize = cluster.size();
-        Double sepialLengthAvg = 0.0,
-                sepialWidthAvg = 0.0,
-                petalLengthAvg = 0.0,
-                petalWidthAvg = 0.0;
-        for (IrisData i: cluster) {
-            sepialLengthAvg += i.sepialLength;
-            sepialWidthAvg += i.sepialWidth;
-            petalLengthAvg += i.petalLength;
-            petalWidthAvg += i.petalWidth;
+    private void clusterPruned(double[] centroids) {
+        int dims = data.getDimensions();
+        distanceCount = bounds.update(values, centroids,
+                numCentroids,
+                HamerlyBounds.halfSeparations(centroids, numCentroids, dims),
+                HamerlyBounds.drifts(boundCentroids, centroids, numCentroids,
+                        dims), 0, data.size());
+        boundCentroids = centroids;
+        for (int row = 0; row < data.size(); row++) {
+            assignment[row] = bounds.getAssigned(row);
         }
-
-        //round it up to two trailing decimal places
-        sepialLengthAvg = Math.round((sepialLengthAvg/clusterSize) * 100.0) /
-                100.0;
-        sepialWidthAvg = Math.round((sepialWidthAvg/clusterSize) * 100.0) /
-                100.0;
-        petalLengthAvg = Math.round((petalLengthAvg/clusterSize) * 100.0) /
-                100.0;
-        petalWidthAvg = Math.round((petalWidthAvg/clusterSize) * 100.0) /
-                100.0;
-
-        return new IrisData(sepialLengthAvg, sepialWidthAvg, petalLengthAvg,
-                petalWidthAvg);
     }
 
     /**
-     * Given two lists of IrisData objects, check to see if their differences
-     * are significant by looking at the distance between a and a', b and b',
-     * c and c'
-     * @param oldCentroids list of IrisData objects
-     * @param newCentroids list of IrisData objects
-     * @return True if difference is lower than threshold, False otherwise
+     * From each cluster, calculate a new centroid by finding the average of
+     * its attributes. An empty cluster keeps its old centroid. Also records
+     * the cluster sizes and the inertia of the iteration.
+     * @param oldCentroids  row-major centroids of the current iteration
+     * @return row-major new centroids
      */
-    private static boolean isConverged(List<IrisData> oldCentroids,
-                                            List<IrisData> newCentroids) {
-        Double threshold = 0.01; //difference allowed
-        Double delta = 0.0;
-        Iterator oldIt = oldCentroids.iterator();
-        Iterator newIt = newCentroids.iterator();
-        while(oldIt.hasNext() && newIt.hasNext()) {
-            IrisData oldCentroid = (IrisData)oldIt.next();
-            IrisData newCentroid = (IrisData)newIt.next();
-            delta += getDistance(oldCentroid, newCentroid);
+    private double[] getNewCentroids(double[] oldCentroids) {
+        int dims = data.getDimensions();
+        double[] sums = new double[numCentroids * dims];
+        int[] counts = new int[numCentroids];
+        double sumSquares = 0.0;
+        for (int row = 0; row < data.size(); row++) {
+            int offset = assignment[row] * dims;
+            sumSquares += DistanceKernel.squaredDistance(values, row * dims,
+                    oldCentroids, offset, dims);
+            DistanceKernel.accumulate(values, row * dims, sums, offset, dims);
+            counts[assignment[row]]++;
+        }
+
+        double[] newCentroids = new double[numCentroids * dims];
+        for (int c = 0; c < numCentroids; c++) {
+            getClusterAverage(sums, counts[c], c * dims, dims, oldCentroids,
+                    newCentroids);
         }
-        return delta < threshold;
+        clusterSizes = counts;
+        inertia = sumSquares;
+        return newCentroids;
     }
 
     /**
-     * Prints the count of each class per cluster.
-     * @param data HashMap of clusters
+     * Given the sums of a cluster, generate a new centroid by calculating
+     * the average.
+     * @param sums  row-major per-cluster sums
+     * @param clusterSize   number of rows in the cluster
+     * @param offset    index of the cluster's first attribute
+     * @param dims  attributes per centroid
+     * @param oldCentroids  row-major old centroids
+     * @param newCentroids  row-major array to write the new centroid to
      */
-    public static void printClusterStats(HashMap<Integer, List<IrisData>>
-                                                 data) {
-        for (Map.Entry<Integer, List<IrisData>> entry: data.entrySet()) {
-            Integer i = entry.getKey();
-            List<IrisData> clusterList = entry.getValue();
-            int setosa = 0, versicolor = 0, virginica = 0;
-            for (IrisData dat: clusterList) {
-                if (dat.irisClass.contains("setosa"))
-                    setosa++;
-                else if (dat.irisClass.contains("virginica"))
-                    virginica++;
-                else
-                    versicolor++;
-            }
-            System.out.println("Cluster " + i + ": " + setosa + " setosa, " +
-                versicolor + " versicolor, " + virginica + " virginica");
+    private static void getClusterAverage(double[] sums, int clusterSize,
+            int offset, int dims, double[] oldCentroids,
+            double[] newCentroids) {
+        if (clusterSize == 0) {
+            System.arraycopy(oldCentroids, offset, newCentroids, offset,
+                    dims);
+            return;
+        }
+        for (int j = offset; j < offset + dims; j++) {
+            newCentroids[j] = sums[j] / clusterSize;
         }
     }
 
+    /**
+     * Runs the command line front end with the sequential engine as the
+     * default. See {@link KMeansCli} for the options.
+     * @param args  command line arguments
+     */
     public static void main(String[] args) {
-        //read data into list
-        String file = "src/iris-data.csv";
-        int numberCentroids = 3;
-        List<IrisData> data = readFromFile(file);
-
-        //pick data points to be the centroids
-        List<IrisData> centroids = chooseCentroids(data, numberCentroids);
-        //System.out.println("Picked three centroids: ");
-        /*for (IrisData d: centroids) {
-            System.out.println(d);
-        }
-        System.out.println();*/
-
-        //cluster the data around the centroids and repeat until convergence
-        Long startTime = System.currentTimeMillis();
-        HashMap<Integer, List<IrisData>> finalClusters = runKMeans
-                (data, centroids);
-        Long endTime = System.currentTimeMillis();
-        System.out.println("Time until convergence: " + (endTime-startTime)
-                + "ms");
-
-        printClusterStats(finalClusters);
+        KMeansCli.run(args, "sequential");
     }
 
 }
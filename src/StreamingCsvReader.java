@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Reads a CSV file on a producer thread and hands it to the consumer in
+ * chunks of parsed rows through a bounded queue, so clustering can start on
+ * the first chunk while the rest of the file is still being read, and at
+ * most a few chunks of parsed rows are ever waiting. Each chunk is a small
+ * columnar {@link Dataset} parsed by a {@link CsvParser} from a mapped
+ * window of the file. Label ids are shared by all chunks of one file.
+ */
+public class StreamingCsvReader implements Runnable {
+    private static final Dataset END_OF_FILE = new Dataset(new double[0],
+            new int[0], Collections.<String>emptyList(),
+            new Schema(Collections.singletonList("end"), null));
+    private static final int WINDOW_BYTES = 1 << 22;    // bytes mapped at once
+
+    private final String fileName;  // file to read
+    private final int chunkRows;    // rows per chunk
+    private final BlockingQueue<Dataset> queue;  // parsed chunks
+    private final List<String> labelNames = new CopyOnWriteArrayList<>();
+    private volatile Schema schema; // given or discovered column layout
+    private volatile RuntimeException failure;  // read error to rethrow
+    private Thread producer;    // thread running the parser
+    private boolean finished;   // true once the end was handed out
+
+    /**
+     * Constructor
+     * @param fileName  String for the file name
+     * @param schema    column layout, or null to discover it
+     * @param chunkRows rows per chunk
+     * @param queueChunks   chunks that may wait in the queue
+     */
+    public StreamingCsvReader(String fileName, Schema schema, int chunkRows,
+                              int queueChunks) {
+        this.fileName = fileName;
+        this.schema = schema;
+        this.chunkRows = chunkRows;
+        this.queue = new ArrayBlockingQueue<>(queueChunks);
+    }
+
+    /**
+     * Starts the producer thread.
+     */
+    public void start() {
+        producer = new Thread(this, "csv-reader");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Waits for the next chunk of rows.
+     * @return the next chunk, or null at the end of the file
+     * @throws IllegalArgumentException if a row could not be parsed
+     * @throws UncheckedIOException if the file could not be read
+     */
+    public Dataset next() {
+        if (finished) {
+            return null;
+        }
+        Dataset chunk;
+        try {
+            chunk = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading " +
+                    fileName, e);
+        }
+        if (chunk == END_OF_FILE) {
+            finished = true;
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return chunk;
+    }
+
+    /**
+     * Column layout of the file, known once the first chunk was returned.
+     * @return the schema
+     */
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Label dictionary shared by all chunks; grows while the file is read.
+     * @return list of label names
+     */
+    public List<String> getLabelNames() {
+        return labelNames;
+    }
+
+    /**
+     * Producer: maps the file window by window and parses it into chunks
+     * with a {@link CsvParser}. A line cut by the end of a window is parsed
+     * from the start of the next one.
+     */
+    @Override
+    public void run() {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ)) {
+            CsvParser parser = CsvParser.open(fileName, channel, schema,
+                    labelNames);
+            schema = parser.getSchema();
+            long size = channel.size();
+            long position = parser.getDataStart();
+            int window = WINDOW_BYTES;
+            while (position < size) {
+                int length = (int) Math.min(window, size - position);
+                boolean eof = position + length == size;
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, length);
+                int pos = 0;
+                while (true) {
+                    pos = parser.parse(buffer, position, pos, length,
+                            chunkRows - parser.size(), eof);
+                    if (parser.size() < chunkRows) {
+                        break;
+                    }
+                    queue.put(parser.take());
+                }
+                if (pos == 0 && !eof) {
+                    //a single line longer than the window
+                    window = (int) Math.min(2L * window, Integer.MAX_VALUE);
+                }
+                position += pos;
+            }
+            if (parser.size() > 0) {
+                queue.put(parser.take());
+            }
+        } catch (IOException e) {
+            failure = new UncheckedIOException("Cannot read " + fileName, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        if (failure == null && schema == null) {
+            failure = new IllegalArgumentException("No data rows in " +
+                    fileName);
+        }
+        try {
+            queue.put(END_OF_FILE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
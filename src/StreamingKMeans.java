@@ -0,0 +1,215 @@
+import java.util.*;
+
+/**
+ * K-means that starts clustering while the CSV file is still being read. A
+ * {@link StreamingCsvReader} parses the file into chunks on its own thread;
+ * every chunk that arrives is used right away for a few mini-batch steps
+ * (see {@link MiniBatchKMeans}), so by the end of the file the centroids are
+ * already close. The chunks are then joined and a few full Lloyd iterations
+ * on the pooled {@link ParallelKMeansEngine} finish the fit. The file is
+ * never shuffled as a whole: batches are drawn at random from each chunk.
+ *
+ * A file sorted by class gives the first chunks only a few classes, so a
+ * centroid that has not won a single row yet is reseeded from the newest
+ * chunk.
+ */
+public class StreamingKMeans {
+    private static final int QUEUE_CHUNKS = 4;  //chunks read ahead
+
+    private final String fileName;  // CSV file to cluster
+    private final int numCentroids; // number of clusters
+    private final int chunkRows;    // rows per chunk from the reader
+    private final int batchSize;    // rows per mini-batch
+    private final int numThreads;   // worker threads
+    private final AssignmentKernel kernel;  // nearest-centroid search
+    private final Random random;    // batch sampling and seeding
+    private double tolerance = KMeans.DEFAULT_TOLERANCE; // shift to stop at
+    private int maxIterations = KMeans.DEFAULT_MAX_ITERATIONS;  // cap
+    private Dataset data;   // all rows, once the file was read
+    private int batches;    // mini-batches run while reading
+    private int iterations; // full iterations run after reading
+
+    /**
+     * Constructor
+     * @param fileName  String for the file name
+     * @param numCentroids  number of clusters
+     * @param chunkRows rows per chunk from the reader
+     * @param batchSize rows per mini-batch
+     * @param numThreads    worker threads
+     * @param kernel    nearest-centroid search
+     * @param random    source of randomness
+     */
+    public StreamingKMeans(String fileName, int numCentroids, int chunkRows,
+                           int batchSize, int numThreads,
+                           AssignmentKernel kernel, Random random) {
+        this.fileName = fileName;
+        this.numCentroids = numCentroids;
+        this.chunkRows = chunkRows;
+        this.batchSize = batchSize;
+        this.numThreads = numThreads;
+        this.kernel = kernel;
+        this.random = random;
+    }
+
+    /**
+     * Sets the centroid shift below which the full iterations after the
+     * file was read have converged.
+     * @param tolerance non-negative tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Sets the number of full iterations after which the fit stops even if
+     * it has not converged.
+     * @param maxIterations iteration cap
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Reads and clusters the file.
+     * @return row-major fitted centroids
+     * @throws java.io.UncheckedIOException if the file cannot be read
+     */
+    public double[] fit() {
+        StreamingCsvReader reader = new StreamingCsvReader(fileName, null,
+                chunkRows, QUEUE_CHUNKS);
+        reader.start();
+        List<Dataset> chunks = new ArrayList<>();
+        Dataset chunk = reader.next();
+        if (chunk == null) {
+            throw new IllegalArgumentException("No data rows in " + fileName);
+        }
+        int dims = chunk.getDimensions();
+        double[] centroids = chunk.sampleRows(
+                Math.min(numCentroids, chunk.size()), random);
+        centroids = Arrays.copyOf(centroids, numCentroids * dims);
+        long[] seen = new long[numCentroids];
+
+        //one reusable batch buffer that the workers are partitioned over
+        double[] batchValues = new double[batchSize * dims];
+        Dataset batch = new Dataset(batchValues, new int[batchSize],
+                reader.getLabelNames(), chunk.getSchema());
+        ParallelKMeansEngine engine = new ParallelKMeansEngine(batch,
+                numCentroids, numThreads, kernel);
+        batches = 0;
+        try {
+            while (chunk != null) {
+                chunks.add(chunk);
+                double[] values = chunk.getValues();
+                int steps = Math.max(1, chunk.size() / batchSize);
+                for (int s = 0; s < steps; s++) {
+                    for (int i = 0; i < batchSize; i++) {
+                        int row = random.nextInt(chunk.size());
+                        System.arraycopy(values, row * dims, batchValues,
+                                i * dims, dims);
+                    }
+                    double[] means = engine.iterate(centroids);
+                    MiniBatchKMeans.moveCentroids(centroids, means,
+                            engine.getClusterSizes(), seen, dims);
+                    batches++;
+                }
+                for (int c = 0; c < numCentroids; c++) {
+                    if (seen[c] == 0) {
+                        int row = random.nextInt(chunk.size());
+                        System.arraycopy(values, row * dims, centroids,
+                                c * dims, dims);
+                    }
+                }
+                chunk = reader.next();
+            }
+        } finally {
+            engine.shutdown();
+        }
+
+        //finish with full iterations over all rows
+        data = Dataset.concat(chunks, reader.getLabelNames(),
+                reader.getSchema());
+        engine = new ParallelKMeansEngine(data, numCentroids, numThreads,
+                kernel);
+        iterations = 0;
+        try {
+            boolean converged = false;
+            while (!converged && iterations < maxIterations) {
+                iterations++;
+                double[] newCentroids = engine.iterate(centroids);
+                converged = KMeans.isConverged(centroids, newCentroids, dims,
+                        tolerance);
+                if (!converged) {
+                    centroids = newCentroids;
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
+        return centroids;
+    }
+
+    /**
+     * All rows of the file, in file order. Valid after {@link #fit()}.
+     * @return a Dataset
+     */
+    public Dataset getData() {
+        return data;
+    }
+
+    /**
+     * Number of mini-batches run while the file was read.
+     * @return batch count
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * Number of full iterations run after the file was read.
+     * @return iteration count
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Clusters a CSV file while it is read. Takes the options of
+     * {@link KMeansCli} for the clusters, threads, tolerance, iteration
+     * cap, kernel, seed and file; kmeans.chunk and kmeans.batch set the
+     * chunk and batch sizes.
+     * @param args  command line arguments
+     */
+    public static void main(String[] args) {
+        KMeansCli.Options options = KMeansCli.parse(args, "pool");
+        if (options == null) {
+            return;
+        }
+        KMeansCli.requireBasicOptions(options, "StreamingKMeans");
+        KMeans kMeans = options.kMeans;
+        int numCentroids = kMeans.getNumCentroids();
+        int chunkRows = Integer.getInteger("kmeans.chunk", 50);
+        int batchSize = Integer.getInteger("kmeans.batch", 32);
+        System.out.println("Kernel: " + kMeans.getKernelName() +
+                ", chunk size " + chunkRows + ", batch size " + batchSize);
+
+        StreamingKMeans streaming = new StreamingKMeans(options.file,
+                numCentroids, chunkRows, batchSize, kMeans.getNumThreads(),
+                kMeans.getKernel(), kMeans.newRandom());
+        streaming.setTolerance(kMeans.getTolerance());
+        streaming.setMaxIterations(kMeans.getMaxIterations());
+        Long startTime = System.currentTimeMillis();
+        double[] centroids = streaming.fit();
+        Long endTime = System.currentTimeMillis();
+        System.out.println("Time until convergence: " + (endTime-startTime)
+                + "ms");
+        System.out.println("Num batches: " + streaming.getBatches() +
+                ", num iterations: " + streaming.getIterations());
+
+        Dataset data = streaming.getData();
+        ParallelKMeansEngine engine = new ParallelKMeansEngine(data,
+                numCentroids, kMeans.getNumThreads(), kMeans.getKernel());
+        KMeansCli.printClusterStats(data, engine.assign(centroids),
+                numCentroids);
+        engine.shutdown();
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.Arrays;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD assignment kernel built on the incubating JDK Vector API. Needs
+ * {@code --add-modules jdk.incubator.vector} at compile and run time; when
+ * the module is missing {@link AssignmentKernel#best()} falls back to the
+ * scalar kernel without ever loading this class.
+ *
+ * When a row is at least one vector wide the kernel vectorizes each
+ * point-to-centroid distance over the dimensions. For narrower rows, such
+ * as the four Iris attributes, a block of points is instead compared with
+ * one vector of centroids at a time, using a transposed copy of the
+ * centroids that is built once per block. For large k the wide-row path is
+ * cache-blocked like {@link BlockedAssignmentKernel}.
+ */
+final class VectorAssignmentKernel implements AssignmentKernel {
+    private static final VectorSpecies<Double> SPECIES =
+            DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public int nearest(double[] values, int offset, double[] centroids,
+                       int numCentroids, int dims) {
+        int upper = SPECIES.loopBound(dims);
+        int minIndex = 0;
+        double minDistance = Double.MAX_VALUE;
+        for (int c = 0; c < numCentroids; c++) {
+            int cOffset = c * dims;
+            DoubleVector acc = DoubleVector.zero(SPECIES);
+            int j = 0;
+            for (; j < upper; j += LANES) {
+                DoubleVector a = DoubleVector.fromArray(SPECIES, values,
+                        offset + j);
+                DoubleVector b = DoubleVector.fromArray(SPECIES, centroids,
+                        cOffset + j);
+                DoubleVector d = a.sub(b);
+                acc = d.fma(d, acc);
+            }
+            double distance = acc.reduceLanes(VectorOperators.ADD);
+            for (; j < dims; j++) {
+                double d = values[offset+j] - centroids[cOffset+j];
+                distance += d * d;
+            }
+            if (distance < minDistance) {
+                minDistance = distance;
+                minIndex = c;
+            }
+        }
+        return minIndex;
+    }
+
+    @Override
+    public void nearestBlock(double[] values, int fromRow, int toRow,
+                             double[] centroids, int numCentroids, int dims,
+                             int[] out, int outOffset) {
+        if (dims >= LANES && numCentroids >= BLOCKED_MIN_CENTROIDS) {
+            nearestBlockTiled(values, fromRow, toRow, centroids,
+                    numCentroids, dims, out, outOffset);
+            return;
+        }
+        if (dims >= LANES) {
+            AssignmentKernel.super.nearestBlock(values, fromRow, toRow,
+                    centroids, numCentroids, dims, out, outOffset);
+            return;
+        }
+
+        //transpose the centroids so one vector holds one attribute of LANES
+        // centroids; padding centroids are never picked
+        int padded = (numCentroids + LANES - 1) / LANES * LANES;
+        double[] transposed = new double[dims * padded];
+        for (int c = 0; c < padded; c++) {
+            for (int j = 0; j < dims; j++) {
+                transposed[j * padded + c] = c < numCentroids ?
+                        centroids[c * dims + j] : Double.POSITIVE_INFINITY;
+            }
+        }
+
+        for (int row = fromRow; row < toRow; row++) {
+            int offset = row * dims;
+            int minIndex = 0;
+            double minDistance = Double.MAX_VALUE;
+            for (int c = 0; c < padded; c += LANES) {
+                DoubleVector acc = DoubleVector.zero(SPECIES);
+                for (int j = 0; j < dims; j++) {
+                    DoubleVector b = DoubleVector.fromArray(SPECIES,
+                            transposed, j * padded + c);
+                    DoubleVector d = b.sub(values[offset+j]);
+                    acc = d.fma(d, acc);
+                }
+                double distance = acc.reduceLanes(VectorOperators.MIN);
+                if (distance < minDistance) {
+                    VectorMask<Double> hit = acc.compare(VectorOperators.EQ,
+                            distance);
+                    minDistance = distance;
+                    minIndex = c + hit.firstTrue();
+                }
+            }
+            out[outOffset + row - fromRow] = minIndex;
+        }
+    }
+
+    /**
+     * Cache-blocked variant of {@link #nearestBlock} for large k, following
+     * {@link BlockedAssignmentKernel}: rows visit one cache-sized tile of
+     * centroids at a time and compare -2x.c + ||c||^2 with precomputed
+     * centroid norms. Each step computes the vector dot products of two
+     * rows with two centroids, so every loaded vector feeds two
+     * multiply-adds.
+     * @param values    row-major points
+     * @param fromRow   first row (inclusive)
+     * @param toRow last row (exclusive)
+     * @param centroids row-major centroids
+     * @param numCentroids  number of centroids
+     * @param dims  attributes per row
+     * @param out   array to write centroid indices to
+     * @param outOffset index in out of the result for fromRow
+     */
+    private void nearestBlockTiled(double[] values, int fromRow, int toRow,
+                                   double[] centroids, int numCentroids,
+                                   int dims, int[] out, int outOffset) {
+        double[] norms = new double[numCentroids];
+        for (int c = 0; c < numCentroids; c++) {
+            norms[c] = dot(centroids, c * dims, centroids, c * dims, dims);
+        }
+        int tile = Math.max(2, BlockedAssignmentKernel.TILE_BYTES /
+                (8 * dims)) & ~1;
+        int rows = toRow - fromRow;
+        double[] best = new double[rows];
+        Arrays.fill(best, Double.MAX_VALUE);
+        int upper = SPECIES.loopBound(dims);
+
+        for (int c0 = 0; c0 < numCentroids; c0 += tile) {
+            int c1 = Math.min(c0 + tile, numCentroids);
+            for (int row = fromRow; row < toRow; row++) {
+                int slot = row - fromRow;
+                int offset = row * dims;
+                double minDistance = best[slot];
+                //out holds the caller's data until the first tile is done
+                int minIndex = c0 == 0 ? 0 : out[outOffset + slot];
+                int c = c0;
+                for (; c + 1 < c1; c += 2) {
+                    int o0 = c * dims, o1 = o0 + dims;
+                    DoubleVector acc0 = DoubleVector.zero(SPECIES);
+                    DoubleVector acc1 = DoubleVector.zero(SPECIES);
+                    int j = 0;
+                    for (; j < upper; j += LANES) {
+                        DoubleVector x = DoubleVector.fromArray(SPECIES,
+                                values, offset + j);
+                        acc0 = x.fma(DoubleVector.fromArray(SPECIES,
+                                centroids, o0 + j), acc0);
+                        acc1 = x.fma(DoubleVector.fromArray(SPECIES,
+                                centroids, o1 + j), acc1);
+                    }
+                    double d0 = acc0.reduceLanes(VectorOperators.ADD);
+                    double d1 = acc1.reduceLanes(VectorOperators.ADD);
+                    for (; j < dims; j++) {
+                        d0 += values[offset+j] * centroids[o0+j];
+                        d1 += values[offset+j] * centroids[o1+j];
+                    }
+                    d0 = norms[c] - 2.0 * d0;
+                    d1 = norms[c+1] - 2.0 * d1;
+                    if (d0 < minDistance) {
+                        minDistance = d0;
+                        minIndex = c;
+                    }
+                    if (d1 < minDistance) {
+                        minDistance = d1;
+                        minIndex = c+1;
+                    }
+                }
+                for (; c < c1; c++) {
+                    double d = norms[c] - 2.0 * dot(values, offset,
+                            centroids, c * dims, dims);
+                    if (d < minDistance) {
+                        minDistance = d;
+                        minIndex = c;
+                    }
+                }
+                best[slot] = minDistance;
+                out[outOffset + slot] = minIndex;
+            }
+        }
+    }
+
+    /**
+     * Vector dot product of two rows.
+     * @param a one array
+     * @param aOffset   index of the first attribute in a
+     * @param b another array
+     * @param bOffset   index of the first attribute in b
+     * @param dims  attributes per row
+     * @return the dot product
+     */
+    private static double dot(double[] a, int aOffset, double[] b,
+                              int bOffset, int dims) {
+        int upper = SPECIES.loopBound(dims);
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int j = 0;
+        for (; j < upper; j += LANES) {
+            acc = DoubleVector.fromArray(SPECIES, a, aOffset + j).fma(
+                    DoubleVector.fromArray(SPECIES, b, bOffset + j), acc);
+        }
+        double s = acc.reduceLanes(VectorOperators.ADD);
+        for (; j < dims; j++) {
+            s += a[aOffset+j] * b[bOffset+j];
+        }
+        return s;
+    }
+
+    @Override
+    public String getName() {
+        return "vector(" + LANES + "x64)";
+    }
+}
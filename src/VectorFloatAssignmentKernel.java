@@ -0,0 +1,99 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD float assignment kernel built on the incubating JDK Vector API,
+ * following {@link VectorAssignmentKernel} with twice the lanes per
+ * vector. Rows at least one vector wide are vectorized over the
+ * dimensions; narrower rows are compared with one vector of transposed
+ * centroids at a time. Loaded reflectively by
+ * {@link FloatAssignmentKernel#best()}.
+ */
+final class VectorFloatAssignmentKernel implements FloatAssignmentKernel {
+    private static final VectorSpecies<Float> SPECIES =
+            FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public int nearest(float[] values, int offset, float[] centroids,
+                       int numCentroids, int dims) {
+        int upper = SPECIES.loopBound(dims);
+        int minIndex = 0;
+        float minDistance = Float.MAX_VALUE;
+        for (int c = 0; c < numCentroids; c++) {
+            int cOffset = c * dims;
+            FloatVector acc = FloatVector.zero(SPECIES);
+            int j = 0;
+            for (; j < upper; j += LANES) {
+                FloatVector a = FloatVector.fromArray(SPECIES, values,
+                        offset + j);
+                FloatVector b = FloatVector.fromArray(SPECIES, centroids,
+                        cOffset + j);
+                FloatVector d = a.sub(b);
+                acc = d.fma(d, acc);
+            }
+            float distance = acc.reduceLanes(VectorOperators.ADD);
+            for (; j < dims; j++) {
+                float d = values[offset+j] - centroids[cOffset+j];
+                distance += d * d;
+            }
+            if (distance < minDistance) {
+                minDistance = distance;
+                minIndex = c;
+            }
+        }
+        return minIndex;
+    }
+
+    @Override
+    public void nearestBlock(float[] values, int fromRow, int toRow,
+                             float[] centroids, int numCentroids, int dims,
+                             int[] out, int outOffset) {
+        if (dims >= LANES) {
+            FloatAssignmentKernel.super.nearestBlock(values, fromRow, toRow,
+                    centroids, numCentroids, dims, out, outOffset);
+            return;
+        }
+
+        //transpose the centroids so one vector holds one attribute of LANES
+        // centroids; padding centroids are never picked
+        int padded = (numCentroids + LANES - 1) / LANES * LANES;
+        float[] transposed = new float[dims * padded];
+        for (int c = 0; c < padded; c++) {
+            for (int j = 0; j < dims; j++) {
+                transposed[j * padded + c] = c < numCentroids ?
+                        centroids[c * dims + j] : Float.POSITIVE_INFINITY;
+            }
+        }
+
+        for (int row = fromRow; row < toRow; row++) {
+            int offset = row * dims;
+            int minIndex = 0;
+            float minDistance = Float.MAX_VALUE;
+            for (int c = 0; c < padded; c += LANES) {
+                FloatVector acc = FloatVector.zero(SPECIES);
+                for (int j = 0; j < dims; j++) {
+                    FloatVector b = FloatVector.fromArray(SPECIES,
+                            transposed, j * padded + c);
+                    FloatVector d = b.sub(values[offset+j]);
+                    acc = d.fma(d, acc);
+                }
+                float distance = acc.reduceLanes(VectorOperators.MIN);
+                if (distance < minDistance) {
+                    VectorMask<Float> hit = acc.compare(VectorOperators.EQ,
+                            distance);
+                    minDistance = distance;
+                    minIndex = c + hit.firstTrue();
+                }
+            }
+            out[outOffset + row - fromRow] = minIndex;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector(" + LANES + "x32)";
+    }
+}